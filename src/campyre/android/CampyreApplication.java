@@ -0,0 +1,88 @@
+package campyre.android;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import campyre.java.Campfire;
+import campyre.java.MemoryBudget;
+import campyre.java.PollInterval;
+import campyre.java.UserCache;
+
+// Passes the system's memory warnings on to the MemoryBudget, which every cache registers with,
+// and the battery's state on to PollInterval, so rooms poll less while it's low.
+// Also starts the background work that shouldn't wait for a screen: watching rooms, and the outbox.
+public class CampyreApplication extends Application {
+	// the same as the system's own low battery warning
+	private static final int LOW_BATTERY_PERCENT = 15;
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		MemoryBudget.shared().register("users", UserCache.shared(), MemoryBudget.PRIORITY_NORMAL);
+		watchBattery();
+		RoomWatcher.update(this);
+		sendOutbox();
+	}
+	
+	// whatever was left in the outbox last time goes out straight away, without waiting for its room to be opened
+	private void sendOutbox() {
+		final Campfire campfire = Utils.getCampfire(this);
+		if (campfire == null)
+			return;
+		
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Utils.outbox(CampyreApplication.this, campfire);
+			}
+		}, "campyre-outbox-load");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// the low and okay broadcasts only come on a change, so the current level is read once up front
+	private void watchBattery() {
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery != null) {
+			int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+			PollInterval.setLowBattery(!plugged && level >= 0 && scale > 0 && (level * 100 / scale) <= LOW_BATTERY_PERCENT);
+		}
+		
+		IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_LOW);
+		filter.addAction(Intent.ACTION_BATTERY_OKAY);
+		registerReceiver(new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				PollInterval.setLowBattery(Intent.ACTION_BATTERY_LOW.equals(intent.getAction()));
+			}
+		}, filter);
+	}
+	
+	// only called from Android 4.0 on, earlier versions just get onLowMemory
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		MemoryBudget.shared().trim(budgetLevel(level));
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		MemoryBudget.shared().trim(MemoryBudget.TRIM_COMPLETE);
+	}
+	
+	private static int budgetLevel(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+			return MemoryBudget.TRIM_COMPLETE;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			return MemoryBudget.TRIM_MODERATE;
+		else
+			return MemoryBudget.TRIM_LIGHT;
+	}
+}
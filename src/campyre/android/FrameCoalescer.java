@@ -0,0 +1,50 @@
+package campyre.android;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Runs an update on the handler's thread at most once per frame, however often it's asked for.
+// Any number of requests (from any thread) made before it runs are answered by that one run,
+// and a request made just after it ran waits for the next frame rather than running again at once.
+class FrameCoalescer {
+	// in milliseconds, one frame at 60 fps
+	static final int FRAME_INTERVAL = 16;
+
+	private Handler handler;
+	private Runnable update;
+
+	// guarded by this
+	private boolean scheduled = false;
+	private long lastRun = 0;
+
+	private Runnable run = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (FrameCoalescer.this) {
+				if (!scheduled)
+					return;
+				scheduled = false;
+				lastRun = SystemClock.uptimeMillis();
+			}
+			update.run();
+		}
+	};
+
+	FrameCoalescer(Handler handler, Runnable update) {
+		this.handler = handler;
+		this.update = update;
+	}
+
+	synchronized void request() {
+		if (scheduled)
+			return;
+		scheduled = true;
+		handler.postAtTime(run, Math.max(SystemClock.uptimeMillis(), lastRun + FRAME_INTERVAL));
+	}
+
+	// drops a run that's been asked for but hasn't happened yet
+	synchronized void cancel() {
+		scheduled = false;
+		handler.removeCallbacks(run);
+	}
+}
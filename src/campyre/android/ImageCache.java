@@ -0,0 +1,35 @@
+package campyre.android;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import campyre.java.MemoryBudget;
+import campyre.java.Trimmable;
+
+// Decoded inline images by message id. A null image means it failed to load.
+// They can all be downloaded again, so the whole lot goes whenever memory is tight.
+public class ImageCache extends HashMap<String,BitmapDrawable> implements Trimmable {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public long memoryUsage() {
+		long total = 0;
+		Iterator<BitmapDrawable> images = values().iterator();
+		while (images.hasNext()) {
+			BitmapDrawable image = images.next();
+			total += MemoryBudget.ENTRY_OVERHEAD;
+			if (image != null && image.getBitmap() != null) {
+				Bitmap bitmap = image.getBitmap();
+				total += (long) bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public void trim(int level) {
+		clear();
+	}
+}
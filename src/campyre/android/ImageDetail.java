@@ -17,7 +17,7 @@ import campyre.android.LoadImageTask.LoadsImage;
 public class ImageDetail extends Activity implements LoadsImage {
 	private static String TIMESTAMP_FORMAT = "MMM d, h:mm a";
 	
-	String roomName;
+	String roomName, roomId, messageId;
 	String person, url;
 	Date timestamp;
 	
@@ -31,6 +31,8 @@ public class ImageDetail extends Activity implements LoadsImage {
 		
 		Bundle extras = getIntent().getExtras();
 		roomName = extras.getString("room_name");
+		roomId = extras.getString("room_id");
+		messageId = extras.getString("message_id");
 		person = extras.getString("person");
 		url = extras.getString("url");
 		timestamp = (Date) extras.getSerializable("timestamp");
@@ -43,6 +45,13 @@ public class ImageDetail extends Activity implements LoadsImage {
 	    	image = holder.image;
         }
         
+        // the room will usually have decoded it already, to show it inline
+        if (image == null && roomId != null) {
+        	RoomSession session = RoomSession.get(roomId);
+        	if (session != null)
+        		image = session.images.get(messageId);
+        }
+        
         if (loadImageTask != null)
     		loadImageTask.onScreenLoad(this);
         
@@ -76,6 +85,12 @@ public class ImageDetail extends Activity implements LoadsImage {
 		this.loadImageTask = null;
 		this.image = image;
 		
+		if (image != null && roomId != null) {
+			RoomSession session = RoomSession.get(roomId);
+			if (session != null)
+				session.images.put(messageId, image);
+		}
+		
 		if (image != null) {
 			ImageView view = (ImageView) findViewById(R.id.image);
 			view.setImageDrawable(image);
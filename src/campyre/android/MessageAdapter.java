@@ -228,6 +228,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
 			final String url = message.body;
 			final String person = message.person;
 			final Date timestamp = message.timestamp;
+			final String messageId = message.id;
 
 			BitmapDrawable image = context.cachedImage(message.id);
 			if (image != null)
@@ -245,6 +246,8 @@ public class MessageAdapter extends ArrayAdapter<Message> {
 						.putExtra("person", person)
 						.putExtra("url", url)
 						.putExtra("timestamp", timestamp)
+						.putExtra("room_id", room.id)
+						.putExtra("message_id", messageId)
 						.putExtra("room_name", room.name));
 				}
 			};
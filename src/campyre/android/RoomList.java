@@ -1,10 +1,12 @@
 package campyre.android;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.ListActivity;
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -20,18 +22,31 @@ import android.widget.ListView;
 import android.widget.TextView;
 import campyre.java.Campfire;
 import campyre.java.CampfireException;
+import campyre.java.Message;
 import campyre.java.Room;
+import campyre.java.UnreadCounts;
 
-public class RoomList extends ListActivity { 
+public class RoomList extends ListActivity implements UnreadCounts.Listener { 
 	private static final int MENU_SETTINGS = 0;
 	private static final int MENU_CLEAR = 1;
 	private static final int MENU_ABOUT = 2;
 	private static final int MENU_FEEDBACK = 3;
 	
+	private static final int WARM_BATCH_SIZE = 2;
+	
+	// in seconds, how often the unread counts are brought up to date from here
+	private static final int SYNC_INTERVAL = 60;
+	
+	// only warm up the user cache once per process, it's kept fresh by the rooms after that
+	private static boolean warmed = false;
+	
+	private static long lastSynced = 0;
+	
 	private Campfire campfire = null;
 	private ArrayList<Room> rooms = null;
 	
 	private LoadRoomsTask loadRoomsTask = null;
+	private SyncUnreadTask syncUnreadTask = null;
 	
 	private boolean forResult = false;
 	private String shareText = null;
@@ -50,6 +65,7 @@ public class RoomList extends ListActivity {
         }
         
         setupControls();
+        UnreadCounts.shared().setListener(this);
         
         RoomListHolder holder = (RoomListHolder) getLastNonConfigurationInstance();
         if (holder != null) {
@@ -57,11 +73,27 @@ public class RoomList extends ListActivity {
 	    	loadRoomsTask = holder.loadRoomsTask;
 	    	if (loadRoomsTask != null)
 	    		loadRoomsTask.onScreenLoad(this);
+	    	syncUnreadTask = holder.syncUnreadTask;
+	    	if (syncUnreadTask != null)
+	    		syncUnreadTask.onScreenLoad(this);
         }
         
         verifyLogin();
     }
     
+    @Override
+    public void onResume() {
+    	super.onResume();
+    	if (campfire != null && rooms != null && getListAdapter() != null)
+    		syncUnread();
+    }
+    
+    @Override
+    public void onDestroy() {
+    	UnreadCounts.shared().removeListener(this);
+    	super.onDestroy();
+    }
+    
     public void verifyLogin() {
     	campfire = Utils.getCampfire(this);
         if (campfire != null)
@@ -88,19 +120,157 @@ public class RoomList extends ListActivity {
     	RoomListHolder holder = new RoomListHolder();
     	holder.rooms = this.rooms;
     	holder.loadRoomsTask = this.loadRoomsTask;
+    	holder.syncUnreadTask = this.syncUnreadTask;
     	return holder;
     }
     
+    // the list saved last time, shown while the real one loads
+    public void onLoadSavedRooms(ArrayList<Room> saved) {
+    	if (rooms == null) {
+    		rooms = saved;
+    		displayRooms();
+    	}
+    }
+    
     public void onLoadRooms(ArrayList<Room> rooms, CampfireException exception) {
     	if (exception == null && rooms != null) {
-    		this.rooms = rooms;
-    		displayRooms();
+    		if (this.rooms != null && getListAdapter() != null)
+    			updateRooms(rooms);
+    		else {
+    			this.rooms = rooms;
+    			displayRooms();
+    		}
+    		warmUsers();
+    		syncUnread();
+    	} else if (this.rooms != null && !this.rooms.isEmpty()) {
+    		// still showing the saved list, which is better than nothing
+    		Utils.alert(this, exception);
     	} else {
     		this.rooms = new ArrayList<Room>();
     		displayRooms(exception);
 		}
     }
     
+    // Brings the list on screen up to date in place, so that only if something actually changed
+    // is it redrawn, and the scroll position is kept either way.
+    private void updateRooms(ArrayList<Room> fresh) {
+    	if (fresh.isEmpty()) {
+    		rooms = fresh;
+    		displayRooms();
+    		return;
+    	}
+    	
+    	// the adapter works on (and so keeps up to date) the rooms list itself
+    	RoomAdapter adapter = (RoomAdapter) getListAdapter();
+    	adapter.setNotifyOnChange(false);
+    	boolean changed = false;
+    	
+    	HashSet<String> freshIds = new HashSet<String>();
+    	for (int i=0; i<fresh.size(); i++)
+    		freshIds.add(fresh.get(i).id);
+    	for (int i=rooms.size()-1; i>=0; i--) {
+    		if (!freshIds.contains(rooms.get(i).id)) {
+    			adapter.remove(rooms.get(i));
+    			changed = true;
+    		}
+    	}
+    	
+    	for (int i=0; i<fresh.size(); i++) {
+    		Room room = fresh.get(i);
+    		if (i < rooms.size() && rooms.get(i).id.equals(room.id)) {
+    			if (rooms.get(i).sameDetails(room))
+    				continue;
+    			adapter.remove(rooms.get(i));
+    		} else {
+    			// new, or moved (renamed rooms are re-sorted)
+    			for (int j=i+1; j<rooms.size(); j++) {
+    				if (rooms.get(j).id.equals(room.id)) {
+    					adapter.remove(rooms.get(j));
+    					break;
+    				}
+    			}
+    		}
+    		adapter.insert(room, i);
+    		changed = true;
+    	}
+    	
+    	if (changed)
+    		adapter.notifyDataSetChanged();
+    	adapter.setNotifyOnChange(true);
+    }
+    
+    // in the background, fill the user cache from the rosters of recently used rooms that still exist
+    public void warmUsers() {
+    	if (warmed)
+    		return;
+    	warmed = true;
+    	
+    	ArrayList<String> roomIds = new ArrayList<String>();
+    	ArrayList<String> recent = Utils.getRecentRooms(this);
+    	for (int i=0; i<recent.size(); i++) {
+    		String roomId = recent.get(i);
+    		for (int j=0; j<rooms.size(); j++) {
+    			if (rooms.get(j).id.equals(roomId)) {
+    				roomIds.add(roomId);
+    				break;
+    			}
+    		}
+    	}
+    	
+    	if (!roomIds.isEmpty())
+    		new WarmUsersTask(this, campfire, roomIds).execute();
+    }
+    
+    // In the background, fetches whatever's new in each room since it was last counted. Rooms that
+    // are open already have their counts kept up to date as they're polled.
+    public void syncUnread() {
+    	long now = System.currentTimeMillis();
+    	if (syncUnreadTask != null || rooms.isEmpty() || (now - lastSynced) < (SYNC_INTERVAL * 1000))
+    		return;
+    	lastSynced = now;
+    	new SyncUnreadTask(this, campfire, new ArrayList<Room>(rooms)).execute();
+    }
+    
+    // on any thread
+    @Override
+    public void onUnreadChanged(final String roomId, int count) {
+    	runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				updateUnread(roomId);
+			}
+		});
+    }
+    
+    // Rebinds the count on the room's row, if it's on screen, and nothing else.
+    // Rows off screen pick up the new count when they're next bound.
+    public void updateUnread(String roomId) {
+    	if (rooms == null || getListAdapter() == null)
+    		return;
+    	
+    	ListView list = getListView();
+    	int first = list.getFirstVisiblePosition();
+    	int last = list.getLastVisiblePosition();
+    	for (int position=first; position<=last && position<rooms.size(); position++) {
+    		if (rooms.get(position).id.equals(roomId)) {
+    			View row = list.getChildAt(position - first);
+    			if (row != null)
+    				bindUnread(row, roomId);
+    			return;
+    		}
+    	}
+    }
+    
+    private static void bindUnread(View row, String roomId) {
+    	TextView unread = (TextView) row.findViewById(R.id.unread);
+    	int count = UnreadCounts.shared().count(roomId);
+    	if (count > 0) {
+    		unread.setText(count >= UnreadCounts.MAX_COUNT ? count + "+" : String.valueOf(count));
+    		unread.setVisibility(View.VISIBLE);
+    	} else
+    		unread.setVisibility(View.GONE);
+    }
+    
     public void selectRoom(Room room) {
     	if (forResult) { // for file uploading
         	setResult(RESULT_OK, new Intent().putExtra("room_id", room.id));
@@ -216,33 +386,51 @@ public class RoomList extends ListActivity {
 			} else {
 				((TextView) view.findViewById(R.id.topic)).setText(R.string.room_has_no_topic);
 			}
+			bindUnread(view, room.id);
 			return view;
 		}
     }
     
-    private class LoadRoomsTask extends AsyncTask<Void,Void,ArrayList<Room>> {
+    // Stale-while-revalidate: the room list saved last time (if nothing's on screen yet) is shown
+    // first, then replaced with the one from Campfire, which is saved for next time.
+    private class LoadRoomsTask extends AsyncTask<Void,ArrayList<Room>,ArrayList<Room>> {
     	public RoomList context;
     	public CampfireException exception = null;
+    	private boolean showSaved;
     	
     	public LoadRoomsTask(RoomList context) {
     		super();
     		this.context = context;
     		this.context.loadRoomsTask = this;
+    		this.showSaved = context.rooms == null;
     	}
        	
        	protected void onScreenLoad(RoomList context) {
        		this.context = context;
        	}
        	
-       	@Override
+       	@Override @SuppressWarnings("unchecked") // for the autocasting to publishProgress
     	protected ArrayList<Room> doInBackground(Void... nothing) {
+       		if (showSaved) {
+       			ArrayList<Room> saved = Utils.savedRooms(context, context.campfire);
+       			if (saved != null && !saved.isEmpty())
+       				publishProgress(saved);
+       		}
+       		
     		try {
-				return Room.all(context.campfire);
+				ArrayList<Room> rooms = Room.all(context.campfire);
+				Utils.saveRooms(context, context.campfire, rooms);
+				return rooms;
 			} catch (CampfireException e) {
 				this.exception = e;
 				return null;
 			}
     	}
+       	
+       	@Override
+       	protected void onProgressUpdate(ArrayList<Room>... saved) {
+       		context.onLoadSavedRooms(saved[0]);
+       	}
     	
     	@Override
     	protected void onPostExecute(ArrayList<Room> rooms) {
@@ -252,9 +440,89 @@ public class RoomList extends ListActivity {
     	}
     }
     
+    // holds on to the application context and not the activity, since it may outlive it
+    private static class WarmUsersTask extends AsyncTask<Void,Void,Void> {
+    	private Context context;
+    	private Campfire campfire;
+    	private ArrayList<String> roomIds;
+    	
+    	public WarmUsersTask(Context context, Campfire campfire, ArrayList<String> roomIds) {
+    		super();
+    		this.context = context.getApplicationContext();
+    		this.campfire = campfire;
+    		this.roomIds = roomIds;
+    	}
+    	
+    	@Override
+    	protected Void doInBackground(Void... nothing) {
+    		Utils.userCache(context, campfire).warm(campfire, roomIds, WARM_BATCH_SIZE);
+    		Utils.saveUserCache(context, campfire);
+    		return null;
+    	}
+    }
+    
+    // Only asks each room for what's after the newest message already counted, or just the newest
+    // message for a room that's never been seen, to start counting from. Rooms that already had
+    // something unread when the counts were loaded from disk are shown as soon as they're loaded.
+    private class SyncUnreadTask extends AsyncTask<Void,String,Void> {
+    	public RoomList context;
+    	private Context appContext;
+    	private Campfire campfire;
+    	private ArrayList<Room> rooms;
+    	
+    	public SyncUnreadTask(RoomList context, Campfire campfire, ArrayList<Room> rooms) {
+    		super();
+    		this.context = context;
+    		this.context.syncUnreadTask = this;
+    		this.appContext = context.getApplicationContext();
+    		this.campfire = campfire;
+    		this.rooms = rooms;
+    	}
+    	
+    	protected void onScreenLoad(RoomList context) {
+       		this.context = context;
+       	}
+    	
+    	@Override
+    	protected Void doInBackground(Void... nothing) {
+    		UnreadCounts counts = Utils.unreadCounts(appContext, campfire);
+    		for (int i=0; i<rooms.size(); i++) {
+    			if (counts.count(rooms.get(i).id) > 0)
+    				publishProgress(rooms.get(i).id);
+    		}
+    		
+    		for (int i=0; i<rooms.size(); i++) {
+    			Room room = rooms.get(i);
+    			if (RoomSession.exists(room.id))
+    				continue;
+    			
+    			String since = counts.lastSeenId(room.id);
+    			try {
+    				counts.arrived(room.id, campfire.user_id, Message.recent(room, since == null ? 1 : UnreadCounts.MAX_COUNT, since));
+    			} catch (CampfireException e) {
+    				// counted next time
+    			}
+    		}
+    		
+    		Utils.saveUnreadCounts(appContext, campfire);
+    		return null;
+    	}
+    	
+    	@Override
+    	protected void onProgressUpdate(String... roomIds) {
+    		context.updateUnread(roomIds[0]);
+    	}
+    	
+    	@Override
+    	protected void onPostExecute(Void nothing) {
+    		context.syncUnreadTask = null;
+    	}
+    }
+    
     static class RoomListHolder {
     	ArrayList<Room> rooms;
     	LoadRoomsTask loadRoomsTask;
+    	SyncUnreadTask syncUnreadTask;
     	boolean error;
     }
     
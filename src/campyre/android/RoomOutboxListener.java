@@ -0,0 +1,71 @@
+package campyre.android;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import campyre.java.Campfire;
+import campyre.java.CampfireException;
+import campyre.java.Message;
+import campyre.java.Outbox;
+import campyre.java.User;
+
+// Hands the Outbox's results for a room to its session, on the UI thread: to the RoomView showing it,
+// if there is one, or straight into the session's messages otherwise. Registered for as long as the session lasts.
+class RoomOutboxListener implements Outbox.Listener {
+	private Context context;
+	private Campfire campfire;
+	private RoomSession session;
+	private Handler handler;
+
+	RoomOutboxListener(Context context, Campfire campfire, RoomSession session) {
+		this.context = context.getApplicationContext();
+		this.campfire = campfire;
+		this.session = session;
+		this.handler = new Handler(Looper.getMainLooper());
+	}
+
+	// on a sending thread
+	@Override
+	public void onSent(String roomId, final ArrayList<String> transitIds, final Message message) {
+		try {
+			User speaker = Utils.userCache(context, campfire).find(campfire, message.user_id);
+			message.person = speaker.displayName();
+		} catch (CampfireException e) {
+			// shown anyway, and named properly the next time it's loaded
+		}
+
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (session.roomView != null)
+					session.roomView.onSpeak(message, transitIds);
+				else {
+					for (int i=0; i<transitIds.size(); i++)
+						session.transitMessages.remove(transitIds.get(i));
+					session.messages.add(message);
+				}
+			}
+		});
+	}
+
+	// a send that's being retried stays on screen as it is, in transit
+	@Override
+	public void onSendFailed(String roomId, final ArrayList<String> transitIds, final CampfireException exception, boolean retrying) {
+		if (retrying)
+			return;
+
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (session.roomView != null)
+					session.roomView.onSpeak(exception, transitIds);
+				else {
+					for (int i=0; i<transitIds.size(); i++)
+						session.transitMessages.remove(transitIds.get(i));
+				}
+			}
+		});
+	}
+}
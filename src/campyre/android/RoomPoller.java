@@ -0,0 +1,313 @@
+package campyre.android;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import campyre.java.Campfire;
+import campyre.java.CampfireException;
+import campyre.java.Message;
+import campyre.java.MessageStore;
+import campyre.java.PollScheduler;
+import campyre.java.Presence;
+import campyre.java.Room;
+import campyre.java.RoomStream;
+
+// Keeps a room's session up to date. The room is followed over the streaming API while that works,
+// and otherwise polled through the process-wide PollScheduler, trying the stream again every
+// STREAM_RETRY_INTERVAL. Whatever arrives is handed to the RoomView showing the room, on the UI thread,
+// merged into at most one update a frame.
+//
+// Its life is the session's: started once the room has loaded, paused a little while after the room
+// goes off screen (a quick look at another tab or app carries on, just polled less often),
+// resumed with a catch-up when it comes back, and stopped for good when the room is left or closed.
+// Once stopped, nothing it started is left running: the stream is closed, and the room is
+// dropped from the scheduler. While it's running (not paused), Presence keeps us in the room.
+class RoomPoller implements PollScheduler.Listener, RoomStream.Listener {
+	// in seconds, how long to poll before trying the stream again
+	private static final int STREAM_RETRY_INTERVAL = 5 * 60;
+
+	// in seconds, how long the room can be off screen before it's paused
+	private static final int PAUSE_DELAY = 60;
+
+	private Context context;
+	private RoomSession session;
+	private Campfire campfire;
+	private MessageStore store;
+	private Handler handler;
+
+	private PollScheduler.Subscription subscription;
+	private RoomStream stream = null;
+	private long nextStreamAttempt = 0;
+	private int pollFailures = 0;
+
+	// guarded by this
+	private boolean paused = false, stopped = false;
+	private String streamedTo = null; // where a stream closed by pausing got to
+
+	// messages waiting to be handed to the screen, merged on the worker threads, guarded by this
+	private ArrayList<Message> pending = new ArrayList<Message>();
+	private String pendingLastId = null;
+	private FrameCoalescer delivery;
+
+	private Runnable pauseLater = new Runnable() {
+		@Override
+		public void run() {
+			pause();
+		}
+	};
+
+	// on the UI thread
+	RoomPoller(Context context, RoomSession session, Campfire campfire) {
+		this.context = context.getApplicationContext();
+		this.session = session;
+		this.campfire = campfire;
+		this.store = SQLiteMessageStore.get(this.context);
+		this.handler = new Handler(Looper.getMainLooper());
+		this.delivery = new FrameCoalescer(handler, new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	// Polls once straight away to catch up, then moves on to the stream.
+	// Synchronized, so that first poll can't start the stream before the subscription's known.
+	synchronized void start() {
+		Presence.shared().watch(session.room);
+		subscription = PollScheduler.shared().subscribe(session.room, session.lastMessageId, preferredMaxMessages(), this);
+	}
+
+	// Stops polling and streaming, but keeps track of where it got to.
+	synchronized void pause() {
+		if (paused || stopped)
+			return;
+		paused = true;
+		Presence.shared().unwatch(session.roomId);
+		subscription.pause();
+		closeStream();
+	}
+
+	// Carries on from where it was paused, with a poll straight away to catch up,
+	// and then the stream again.
+	synchronized void resume() {
+		handler.removeCallbacks(pauseLater);
+		if (!paused || stopped)
+			return;
+		paused = false;
+		Presence.shared().watch(session.room);
+		nextStreamAttempt = 0;
+		subscription.resume(streamedTo);
+		streamedTo = null;
+	}
+
+	// For good, when the room is left or closed. Anything in flight finishes without being delivered.
+	synchronized void stop() {
+		if (stopped)
+			return;
+		stopped = true;
+		Presence.shared().unwatch(session.roomId);
+		handler.removeCallbacks(pauseLater);
+		delivery.cancel();
+		subscription.cancel();
+		closeStream();
+	}
+
+	synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	// the user said something, so the reply is worth watching for
+	void spoke() {
+		subscription.spoke();
+	}
+
+	// on the UI thread
+	void setVisible(boolean visible) {
+		subscription.setVisible(visible);
+		handler.removeCallbacks(pauseLater);
+		if (visible)
+			resume();
+		else
+			handler.postDelayed(pauseLater, PAUSE_DELAY * 1000);
+	}
+
+	@Override
+	public void onPoll(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {
+		if (isStopped())
+			return;
+
+		pollFailures = 0;
+		received(messages, previousId);
+		deliver(messages);
+
+		// no other poll can be under way while this one is finishing, so the stream takes over exactly from here
+		synchronized (this) {
+			if (!paused && !stopped && System.currentTimeMillis() >= nextStreamAttempt)
+				startStream();
+		}
+	}
+
+	@Override
+	public void onPollFailed(PollScheduler.Subscription subscription, CampfireException exception) {
+		if (isStopped())
+			return;
+
+		pollFailures += 1;
+		final CampfireException error = new CampfireException(exception, "Connection error while trying to poll. (Try #" + pollFailures + ")");
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (session.roomView != null)
+					session.roomView.onPoll(error);
+			}
+		});
+	}
+
+	// streamed messages, on the stream's own thread
+	@Override
+	public void onMessages(ArrayList<Message> messages, String previousId) {
+		if (isStopped())
+			return;
+
+		received(messages, previousId);
+		deliver(messages);
+	}
+
+	@Override
+	public void onBackfill(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {
+		backfilled(messages, previousId);
+	}
+
+	@Override
+	public void onBackfill(ArrayList<Message> messages, String previousId) {
+		backfilled(messages, previousId);
+	}
+
+	// The screen only keeps the newest page, which has already been shown, so what was skipped
+	// goes into the archive (to be searchable), now that it can follow on without a gap.
+	private void backfilled(ArrayList<Message> messages, String previousId) {
+		if (isStopped())
+			return;
+
+		Utils.userCache(context, campfire).fillKnown(messages);
+		archive(session.room, messages, previousId);
+	}
+
+	// Polling is paused while the stream lasts, and resumed from wherever the stream left off if it can't carry on.
+	// A stream that's closed (by pausing or stopping) doesn't resume polling.
+	private void startStream() {
+		nextStreamAttempt = System.currentTimeMillis() + (STREAM_RETRY_INTERVAL * 1000);
+		subscription.pause();
+
+		final RoomStream stream = new RoomStream(session.room, subscription.lastMessageId(), this);
+		this.stream = stream;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (!stream.run())
+					streamFailed(stream);
+			}
+		}, "campyre-stream-" + session.roomId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private synchronized void streamFailed(RoomStream failed) {
+		if (failed == stream && !paused && !stopped) {
+			stream = null;
+			subscription.resume(failed.lastMessageId());
+		}
+	}
+
+	private void closeStream() {
+		if (stream != null) {
+			streamedTo = stream.lastMessageId();
+			stream.close();
+			stream = null;
+		}
+	}
+
+	// Names the speakers of newly arrived messages, and keeps the messages for next time.
+	// previousId is the message they follow on from, or null if there may be a gap.
+	// If the speakers can't be fetched, the messages are shown with placeholder names.
+	private void received(ArrayList<Message> messages, String previousId) {
+		if (messages.isEmpty())
+			return;
+
+		try {
+			Utils.userCache(context, campfire).fillPeople(campfire, messages);
+			Utils.saveUserCache(context, campfire);
+		} catch (CampfireException e) {
+			// shown anyway, and named properly the next time they're loaded
+		}
+
+		Room room = session.room;
+		try {
+			store.add(room.id, messages, preferredMaxMessages());
+		} catch (CampfireException e) {
+			// the store is only a head start for next time, polling carries on without it
+		}
+		archive(room, messages, previousId);
+
+		// read as soon as they're shown, if the room's on screen
+		Utils.unreadCounts(context, campfire).arrived(room.id, campfire.user_id, messages);
+		Utils.saveUnreadCountsLater(context, campfire);
+
+		// the watcher leaves open rooms to this
+		RoomWatcher.arrived(room, messages);
+	}
+
+	// Only messages that pick up exactly where the archive left off are archived (and so searchable),
+	// since the archive can't have gaps. Anything skipped is filled in the next time the day's transcript is loaded
+	// (see TranscriptArchive.fill).
+	private void archive(Room room, ArrayList<Message> messages, String previousId) {
+		if (previousId == null)
+			return;
+		try {
+			if (previousId.equals(Utils.transcriptArchive(context, room.id).lastId()))
+				Utils.archiveMessages(context, room.id, messages);
+		} catch (CampfireException e) {
+			// searching is a bonus, polling carries on without it
+		}
+	}
+
+	// Filters and merges the messages into what's waiting for the screen, which gets everything
+	// that came in during a frame as one update. Only the newest page is kept, as that's all the screen keeps.
+	private void deliver(ArrayList<Message> messages) {
+		int max = preferredMaxMessages();
+		synchronized (this) {
+			for (int i=0; i<messages.size(); i++) {
+				Message message = messages.get(i);
+				if (RoomView.messageAllowed(context, message.type))
+					pending.add(message);
+			}
+			if (!messages.isEmpty())
+				pendingLastId = messages.get(messages.size() - 1).id;
+			if (pending.size() > max)
+				pending.subList(0, pending.size() - max).clear();
+		}
+		delivery.request();
+	}
+
+	// on the UI thread
+	private void flush() {
+		ArrayList<Message> messages;
+		String lastId;
+		synchronized (this) {
+			messages = pending;
+			lastId = pendingLastId;
+			pending = new ArrayList<Message>();
+			pendingLastId = null;
+		}
+		if (session.roomView != null)
+			session.roomView.onPoll(messages, lastId);
+	}
+
+	private int preferredMaxMessages() {
+		return Utils.getIntPreferenceFromString(context, Settings.NUMBER_MESSAGES_KEY, Settings.NUMBER_MESSAGES_DEFAULT);
+	}
+}
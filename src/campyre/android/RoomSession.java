@@ -0,0 +1,140 @@
+package campyre.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.app.Activity;
+import campyre.java.MemoryBudget;
+import campyre.java.Message;
+import campyre.java.MessageWindow;
+import campyre.java.Outbox;
+import campyre.java.Room;
+import campyre.java.Trimmable;
+
+// Everything about an open room that should outlive any one screen on it: the message window,
+// messages in transit, decoded images, and the background tasks working on the room.
+// There's one per room in the process, so however many screens are showing a room
+// (its tabs, or a shortcut to a room that's already open) there's one poller and one set of caches.
+//
+// Screens attach when they're created and detach when they're destroyed. A session outlives
+// configuration changes (taking over from the retained holders), and is closed once the last
+// screen on it has finished for good. Users are already shared process-wide, by the UserCache.
+public class RoomSession {
+	// how many messages are kept if memory gets critically low
+	private static final int RETAINED_MESSAGES = 20;
+
+	private static HashMap<String,RoomSession> sessions = new HashMap<String,RoomSession>();
+
+	public final String roomId;
+	private ArrayList<Activity> attached = new ArrayList<Activity>();
+
+	// the room, and the window of messages shown in it
+	Room room;
+	MessageWindow messages = new MessageWindow();
+	String lastMessageId = null;
+	HashMap<String,Message> transitMessages = new LinkedHashMap<String,Message>(); // in the order they were spoken
+	Message errorMessage;
+
+	// decoded inline images, by message id, for every screen on the room
+	ImageCache images = new ImageCache();
+
+	// the RoomView that background work reports to, the one most recently shown
+	RoomView roomView;
+
+	// whether the room is on screen, so the RoomWatcher doesn't notify about what's already being read
+	volatile boolean visible = false;
+
+	HashMap<String,RoomView.SpeakTask> speakTasks = new HashMap<String,RoomView.SpeakTask>();
+	HashMap<String,LoadImageTask> loadImageTasks = new HashMap<String,LoadImageTask>();
+	RoomView.LoadRoomTask loadRoomTask;
+	RoomView.LoadStoredTask loadStoredTask;
+	RoomView.RestoreTask restoreTask;
+	RoomView.LeaveRoomTask leaveRoomTask;
+	RoomView.LoadOutboxTask loadOutboxTask;
+
+	// takes the room's sent messages from the Outbox, once it's open
+	Outbox.Listener outboxListener;
+
+	// follows the room once it's loaded
+	RoomPoller poller;
+
+	// What's on screen is only given up when the process is about to be killed anyway.
+	// Messages still in transit are never dropped, they haven't been sent yet.
+	private Trimmable messageMemory = new Trimmable() {
+		@Override
+		public long memoryUsage() {
+			return MemoryBudget.estimate(messages.list()) + MemoryBudget.estimate(new ArrayList<Message>(transitMessages.values()));
+		}
+
+		@Override
+		public void trim(int level) {
+			if (level >= MemoryBudget.TRIM_COMPLETE && messages.size() > RETAINED_MESSAGES) {
+				messages.trimTo(RETAINED_MESSAGES);
+				if (roomView != null)
+					roomView.updateMessages();
+			}
+		}
+	};
+
+	private RoomSession(String roomId) {
+		this.roomId = roomId;
+		MemoryBudget.shared().register("room images", images, MemoryBudget.PRIORITY_LOW);
+		MemoryBudget.shared().register("room messages", messageMemory, MemoryBudget.PRIORITY_HIGH);
+	}
+
+	public static synchronized boolean exists(String roomId) {
+		return sessions.containsKey(roomId);
+	}
+
+	// the room's session, if any screen has it open
+	public static synchronized RoomSession get(String roomId) {
+		return sessions.get(roomId);
+	}
+
+	// Stops every open room's poller, e.g. on logging out, so nothing goes on storing the account's messages.
+	public static synchronized void stopAll() {
+		Iterator<RoomSession> all = sessions.values().iterator();
+		while (all.hasNext()) {
+			RoomSession session = all.next();
+			if (session.poller != null) {
+				session.poller.stop();
+				session.poller = null;
+			}
+		}
+	}
+
+	public static synchronized RoomSession attach(String roomId, Activity activity) {
+		RoomSession session = sessions.get(roomId);
+		if (session == null) {
+			session = new RoomSession(roomId);
+			sessions.put(roomId, session);
+		}
+		if (!session.attached.contains(activity))
+			session.attached.add(activity);
+		return session;
+	}
+
+	// Call from onDestroy. The session is closed if this was the last screen on it,
+	// unless it's only being destroyed to be recreated (e.g. on rotation).
+	public void detach(Activity activity) {
+		synchronized (RoomSession.class) {
+			attached.remove(activity);
+			if (roomView == activity)
+				roomView = null;
+
+			if (attached.isEmpty() && activity.isFinishing()) {
+				sessions.remove(roomId);
+				if (poller != null)
+					poller.stop();
+				if (outboxListener != null)
+					Outbox.shared().removeListener(roomId, outboxListener);
+				MemoryBudget.shared().unregister(images);
+				MemoryBudget.shared().unregister(messageMemory);
+				Utils.roomSnapshotFile(activity, roomId).delete();
+				RoomWatcher.closed(activity, roomId);
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ import android.content.Intent;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -22,51 +23,52 @@ import campyre.java.Campfire;
 import campyre.java.CampfireException;
 import campyre.java.Message;
 import campyre.java.Message.Type;
+import campyre.java.MessageStore;
+import campyre.java.MessageWindow;
+import campyre.java.Outbox;
+import campyre.java.Presence;
 import campyre.java.Room;
-import campyre.java.User;
+import campyre.java.RoomSnapshot;
+import campyre.java.UnreadCounts;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 
 public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 	private static final int MENU_SETTINGS = 0;
 	private static final int MENU_SHORTCUT = 1;
 	private static final int MENU_LEAVE = 2;
+	private static final int MENU_WATCH = 3;
 
-	private static final int AUTOPOLL_INTERVAL = 5; // in seconds
-	private static final long JOIN_TIMEOUT = 60; // in seconds
 
 	private Campfire campfire;
 	private String roomId;
-	private Room room;
 
-	private HashMap<String,SpeakTask> speakTasks = new HashMap<String,SpeakTask>();
-	private LoadRoomTask loadRoomTask;
-	private LeaveRoomTask leaveRoomTask;
-	private PollTask pollTask;
+	// the room's message window, caches and background tasks, shared with any other screen on the room
+	private RoomSession session;
 
-	private int transitId = 1;
-	private long lastJoined = 0;
-	private String lastMessageId = null;
+	// set when coming back after the process was killed, and a snapshot was saved before it was
+	private boolean restoring = false;
 
 	private String shareText = null;
 	private boolean shared = false;
 
-	private ArrayList<Message> messages = new ArrayList<Message>();
-	private HashMap<String,Message> transitMessages = new HashMap<String,Message>();
-	private Message errorMessage;
-
-	private HashMap<String,LoadImageTask> loadImageTasks = new HashMap<String,LoadImageTask>();
-	private HashMap<String,BitmapDrawable> cachedImages = new HashMap<String,BitmapDrawable>();
-
-	private HashMap<String,User> users = new HashMap<String,User>();
+	private MessageStore store;
 
 	private EditText body;
 	private Button speak;
 
+	// however many polls, speaks and errors come in at once, the list is rebuilt at most once a frame
+	private FrameCoalescer updates = new FrameCoalescer(new Handler(), new Runnable() {
+		@Override
+		public void run() {
+			updateMessages();
+		}
+	});
+
 	@SuppressWarnings("deprecation")
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -77,79 +79,107 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 
 		Bundle extras = getIntent().getExtras();
 		roomId = extras.getString("room_id"); // will always be set
-		room = (Room) extras.getSerializable("room"); // may be null
+		Room room = (Room) extras.getSerializable("room"); // may be null
 		shareText = extras.getString("shareText");
 
+		store = SQLiteMessageStore.get(this);
+
+		if (savedInstanceState != null)
+			shared = savedInstanceState.getBoolean("shared");
+
 		setupControls();
 
-		if (savedInstanceState != null) {
-			transitId = savedInstanceState.getInt("transitId");
-			lastJoined = savedInstanceState.getLong("lastJoined");
-		}
+		boolean existing = RoomSession.exists(roomId);
+		session = RoomSession.attach(roomId, this);
+		if (session.room == null)
+			session.room = room;
 
-		RoomViewHolder holder = (RoomViewHolder) getLastNonConfigurationInstance();
-		if (holder != null) {
-			campfire = holder.campfire;
-			room = holder.room;
-			messages = holder.messages;
-			transitMessages = holder.transitMessages;
-			errorMessage = holder.errorMessage;
-			users = holder.users;
-			speakTasks = holder.speakTasks;
-			loadImageTasks = holder.loadImageTasks;
-			loadRoomTask = holder.loadRoomTask;
-			leaveRoomTask = holder.leaveRoomTask;
-			pollTask = holder.pollTask;
-			cachedImages = holder.cachedImages;
-			shared = holder.shared;
+		// a new session for a screen that was saved means the process was killed in between
+		if (!existing && savedInstanceState != null) {
+			Presence.shared().proven(roomId, savedInstanceState.getLong("lastJoined"));
+			restoring = savedInstanceState.getBoolean("snapshot", false);
 		}
 
-		if (speakTasks != null) {
-			Iterator<SpeakTask> iterator = speakTasks.values().iterator();
-			while (iterator.hasNext())
-				iterator.next().onScreenLoad(this);
-		}
+		attachTasks();
+		verifyLogin();
+	}
 
-		if (loadImageTasks != null) {
-			Iterator<LoadImageTask> iterator = loadImageTasks.values().iterator();
-			while (iterator.hasNext())
-				iterator.next().onScreenLoad(this);
-		}
+	// Makes this the screen the room's background work reports to.
+	private void attachTasks() {
+		session.roomView = this;
 
-		if (pollTask != null)
-			pollTask.onScreenLoad(this);
+		Iterator<SpeakTask> speakTasks = session.speakTasks.values().iterator();
+		while (speakTasks.hasNext())
+			speakTasks.next().onScreenLoad(this);
 
-		if (loadRoomTask != null)
-			loadRoomTask.onScreenLoad(this);
+		Iterator<LoadImageTask> loadImageTasks = session.loadImageTasks.values().iterator();
+		while (loadImageTasks.hasNext())
+			loadImageTasks.next().onScreenLoad(this);
 
-		if (leaveRoomTask != null)
-			leaveRoomTask.onScreenLoad(this);
+		if (session.loadRoomTask != null)
+			session.loadRoomTask.onScreenLoad(this);
 
-		verifyLogin();
+		if (session.loadStoredTask != null)
+			session.loadStoredTask.onScreenLoad(this);
+
+		if (session.restoreTask != null)
+			session.restoreTask.onScreenLoad(this);
+
+		if (session.leaveRoomTask != null)
+			session.leaveRoomTask.onScreenLoad(this);
+
+		if (session.loadOutboxTask != null)
+			session.loadOutboxTask.onScreenLoad(this);
+	}
+
+	// coming back to this screen after another one on the same room was in front
+	@Override
+	public void onResume() {
+		super.onResume();
+		session.visible = true;
+		RoomWatcher.seen(this, roomId);
+		markRead();
+		if (session.poller != null)
+			session.poller.setVisible(true);
+		if (session.roomView != this) {
+			attachTasks();
+			if (session.room != null)
+				updateMessages();
+		}
+	}
+
+	@Override
+	public void onPause() {
+		session.visible = false;
+		if (session.poller != null)
+			session.poller.setVisible(false);
+		if (campfire != null)
+			new SaveUnreadTask(this, campfire).execute();
+		super.onPause();
+	}
+
+	// everything shown has been read, as long as it's on screen
+	private void markRead() {
+		if (session.visible)
+			UnreadCounts.shared().read(roomId, session.lastMessageId);
 	}
 
 	@Override
-	public Object onRetainNonConfigurationInstance() {
-		RoomViewHolder holder = new RoomViewHolder();
-		holder.campfire = this.campfire;
-		holder.room = this.room;
-		holder.messages = this.messages;
-		holder.transitMessages = this.transitMessages;
-		holder.errorMessage = this.errorMessage;
-		holder.users = this.users;
-		holder.speakTasks = this.speakTasks;
-		holder.loadImageTasks = this.loadImageTasks;
-		holder.loadRoomTask = this.loadRoomTask;
-		holder.pollTask = this.pollTask;
-		holder.shared = this.shared;
-		holder.cachedImages = this.cachedImages;
-		holder.leaveRoomTask = this.leaveRoomTask;
-		return holder;
+	public void onDestroy() {
+		updates.cancel();
+		session.detach(this);
+		super.onDestroy();
 	}
 
 	@Override public void onSaveInstanceState(Bundle outState) {
-		outState.putInt("transitId", transitId);
-		outState.putLong("lastJoined", lastJoined);
+		outState.putLong("lastJoined", Presence.shared().lastProven(roomId));
+		outState.putBoolean("shared", shared);
+
+		// in case the process is killed while we're in the background
+		if (session.room != null) {
+			new SaveSnapshotTask(this, new RoomSnapshot(session.room, session.lastMessageId, session.messages.list())).execute();
+			outState.putBoolean("snapshot", true);
+		}
 		super.onSaveInstanceState(outState);
 	}
 
@@ -158,16 +188,58 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 	}
 
 	private void onRoomLoaded() {
+		Utils.addRecentRoom(this, roomId);
 		updateMessages();
+		markRead();
+
+		if (session.outboxListener == null && session.loadOutboxTask == null)
+			new LoadOutboxTask(this).execute();
 
 		body.setFocusableInTouchMode(true);
 		body.setEnabled(true);
 		speak.setEnabled(true);
 		((TextView) findViewById(R.id.empty_message)).setText(R.string.loading_messages);
 
+		// draw whatever we stored last time first, then only poll for what's newer
+		if (session.messages.isEmpty() && session.lastMessageId == null) {
+			if (session.loadStoredTask == null)
+				new LoadStoredTask(this).execute();
+		} else
+			startPoll();
+	}
+
+	private void onLoadStored(ArrayList<Message> stored) {
+		for (int i=0; i<stored.size(); i++) {
+			Message message = stored.get(i);
+			if (messageAllowed(this, message.type))
+				session.messages.add(message);
+		}
+
+		if (!stored.isEmpty()) {
+			session.lastMessageId = stored.get(stored.size() - 1).id;
+			updateMessages();
+		}
+
 		startPoll();
 	}
 
+	// Puts the room back as it was before the process was killed, without waiting on the network.
+	// Messages that were still being sent are sent again, as there's no telling if they made it.
+	private void onRestore(RoomSnapshot snapshot) {
+		restoring = false;
+		if (snapshot == null || !roomId.equals(snapshot.room.id)) {
+			loadRoom();
+			return;
+		}
+
+		session.room = snapshot.room;
+		session.messages = new MessageWindow(snapshot.messages);
+		session.lastMessageId = snapshot.lastMessageId;
+
+		// messages still in transit are in the Outbox's journal, and come back from there
+		onRoomLoaded();
+	}
+
 	private void onRoomLoaded(CampfireException exception) {
 		Utils.alert(this, exception);
 		finish();
@@ -177,61 +249,102 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 	 	return Utils.getIntPreferenceFromString(this, Settings.NUMBER_MESSAGES_KEY, Settings.NUMBER_MESSAGES_DEFAULT);
 	}
 
-	private void onPoll(ArrayList<Message> messages) {
-		int max = preferredMaxMessages();
-
-		// filter out some messages according to user preferences
-		for (int i=0; i<messages.size(); i++) {
-			Message message = messages.get(i);
-			if (messageAllowed(message.type))
-				this.messages.add(message);
-		}
-
-		if (this.messages.size() > max) {
-		 	List<Message> withinMax = this.messages.subList(this.messages.size() - max, this.messages.size());
-		 	this.messages = new ArrayList<Message>();
-		 	this.messages.addAll(withinMax);
-		}
+	// Everything polled since the last frame, already filtered, with the id of the last message
+	// polled (shown or not), or null if nothing came in.
+	void onPoll(ArrayList<Message> messages, String lastMessageId) {
+		// anything already shown (e.g. our own, confirmed when it was spoken) is dropped
+		session.messages.addAll(messages);
+		session.messages.trimTo(preferredMaxMessages());
 
-		errorMessage = null;
+		session.errorMessage = null;
 
 		// one-way, since no other "Loading..." messages will be shown after this.
-		if (messages.size() == 0) {
+		if (lastMessageId == null) {
 			findViewById(R.id.empty_spinner).setVisibility(View.GONE);
 			((TextView) findViewById(R.id.empty_message)).setText(R.string.no_messages);
-		} else {
-			String newLastMessageId = messages.get(messages.size() - 1).id;
-			if (!newLastMessageId.equals(lastMessageId)) {
-				lastMessageId = newLastMessageId;
-				updateMessages();
-			}
+		} else if (!lastMessageId.equals(session.lastMessageId)) {
+			session.lastMessageId = lastMessageId;
+			updates.request();
+			markRead();
 		}
 	}
 
 	// polling failed, messages still has the old list
-	private void onPoll(CampfireException exception) {
-		errorMessage = new Message("error", Type.ERROR, exception.getMessage());
-		updateMessages();
+	void onPoll(CampfireException exception) {
+		session.errorMessage = new Message("error", Type.ERROR, exception.getMessage());
+		updates.request();
 	}
 
-	private void onSpeak(Message message, String transitId) {
-		transitMessages.remove(transitId);
-		//messages.add(message);
-		updateMessages();
+	// messages that were still waiting to go out, e.g. from before the process was killed
+	private void onLoadOutbox(ArrayList<Message> pending) {
+		Outbox outbox = Outbox.shared();
+		boolean added = false;
+		for (int i=0; i<pending.size(); i++) {
+			Message message = pending.get(i);
+			// it may have been sent since it was looked up
+			if (!session.transitMessages.containsKey(message.id) && outbox.isPending(roomId, message.id)) {
+				session.transitMessages.put(message.id, message);
+				added = true;
+			}
+		}
+		if (added)
+			updates.request();
 	}
 
-	private void onSpeak(CampfireException exception, String transitId) {
-		transitMessages.remove(transitId);
-		updateMessages();
+	// The confirmed message takes the place of the ones in transit (more than one if they were merged)
+	// straight away, on screen too, and is recognized and dropped when the next poll brings it back.
+	void onSpeak(Message message, ArrayList<String> transitIds) {
+		ArrayList<Message> transits = removeTransits(transitIds);
+		if (session.poller != null)
+			session.poller.spoke();
+
+		int position = session.messages.add(message);
+		MessageAdapter adapter = (MessageAdapter) getListAdapter();
+		if (adapter == null || session.messages.size() > preferredMaxMessages()) {
+			session.messages.trimTo(preferredMaxMessages());
+			updates.request();
+			return;
+		}
+
+		// the window comes first in the list, so its positions are the same
+		adapter.setNotifyOnChange(false);
+		for (int i=0; i<transits.size(); i++)
+			adapter.remove(transits.get(i));
+		if (position >= 0)
+			adapter.insert(message, position);
+		adapter.notifyDataSetChanged();
+	}
+
+	void onSpeak(CampfireException exception, ArrayList<String> transitIds) {
+		ArrayList<Message> transits = removeTransits(transitIds);
+		MessageAdapter adapter = (MessageAdapter) getListAdapter();
+		if (adapter != null) {
+			adapter.setNotifyOnChange(false);
+			for (int i=0; i<transits.size(); i++)
+				adapter.remove(transits.get(i));
+			adapter.notifyDataSetChanged();
+		} else
+			updates.request();
 		Utils.alert(this, exception);
 	}
 
-	private void updateMessages() {
+	// the ones that were still there
+	private ArrayList<Message> removeTransits(ArrayList<String> transitIds) {
+		ArrayList<Message> transits = new ArrayList<Message>();
+		for (int i=0; i<transitIds.size(); i++) {
+			Message transit = session.transitMessages.remove(transitIds.get(i));
+			if (transit != null)
+				transits.add(transit);
+		}
+		return transits;
+	}
+
+	void updateMessages() {
 		ArrayList<Message> allMessages = new ArrayList<Message>();
-		allMessages.addAll(messages);
-		allMessages.addAll(transitMessages.values());
-		if (errorMessage != null)
-			allMessages.add(errorMessage);
+		allMessages.addAll(session.messages.list());
+		allMessages.addAll(session.transitMessages.values());
+		if (session.errorMessage != null)
+			allMessages.add(session.errorMessage);
 
 		// refresh screen and try to control scrolling intelligently
 		boolean wasAtBottom = scrolledToBottom();
@@ -245,13 +358,14 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 			scrollToPosition(position);
 	}
 
-	private boolean messageAllowed(Type type) {
+	// filters out some messages according to user preferences
+	static boolean messageAllowed(Context context, Type type) {
 		switch(type) {
 		case ENTRY:
 		case LEAVE:
-			return Utils.getBooleanPreference(this, Settings.ENTRY_EXIT_KEY, Settings.ENTRY_EXIT_DEFAULT);
+			return Utils.getBooleanPreference(context, Settings.ENTRY_EXIT_KEY, Settings.ENTRY_EXIT_DEFAULT);
 		case TIMESTAMP:
-			return Utils.getBooleanPreference(this, Settings.TIMESTAMPS_KEY, Settings.TIMESTAMPS_DEFAULT);
+			return Utils.getBooleanPreference(context, Settings.TIMESTAMPS_KEY, Settings.TIMESTAMPS_DEFAULT);
 		default:
 			return true;
 		}
@@ -317,59 +431,44 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 		if (!msg.equals("")) {
 			body.setText("");
 
-			String id = transitId + "-" + campfire.user_id;
-			transitId += 1;
+			String id = Outbox.transitId();
 			Message message = new Message(id, Type.TRANSIT, msg);
-			transitMessages.put(id, message);
+			session.transitMessages.put(id, message);
 
 			// avoid refreshing the whole adapter if I don't have to
 			((MessageAdapter) getListAdapter()).add(message);
 			scrollToBottom();
 
-			// actually do the speaking in the background
+			// journaled and sent in the background, the result comes back through the session's outbox listener
 			new SpeakTask(this, message).execute();
 		}
 	}
 
+	// a saved snapshot comes first, as it has more than a room passed in from the room list
 	private void loadRoom() {
-		if (room != null)
+		if (restoring) {
+			if (session.restoreTask == null)
+				new RestoreTask(this).execute();
+		} else if (session.room != null)
 			onRoomLoaded();
 		else {
-			if (loadRoomTask == null)
+			if (session.loadRoomTask == null)
 				new LoadRoomTask(this).execute();
 		}
 	}
 
 	private void startPoll() {
-		if (pollTask == null)
-			pollTask = (PollTask) new PollTask(this).execute();
-	}
-
-	// Fetches latest MAX_MESSAGES from the transcript, then for each message,
-	// looks up the associated User to assign a display name.
-	// We use the "users" HashMap to cache Users from the network.
-	private ArrayList<Message> poll(Room room, HashMap<String,User> users) throws CampfireException {
-		int maxMessages = preferredMaxMessages();
-
-		ArrayList<Message> messages = Message.recent(room, maxMessages, lastMessageId);
-		int length = messages.size();
-		for (int i=0; i<length; i++) {
-			Message message = messages.get(i);
-			if (message.user_id != null)
-				fillPerson(message, users);
+		if (session.poller == null) {
+			session.poller = new RoomPoller(this, session, campfire);
+			session.poller.start();
 		}
-		return messages;
 	}
 
-	private void fillPerson(Message message, HashMap<String,User> users) throws CampfireException {
-		User speaker;
-		if (users.containsKey(message.user_id))
-			speaker = users.get(message.user_id);
-		else {
-			speaker = User.find(campfire, message.user_id);
-			users.put(message.user_id, speaker);
+	private void stopPoll() {
+		if (session.poller != null) {
+			session.poller.stop();
+			session.poller = null;
 		}
-		message.person = speaker.displayName();
 	}
 
 	private void verifyLogin() {
@@ -384,16 +483,21 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 		}
     }
 
+	// polling stops first, so it can't join the room again behind our back
 	private void leaveRoom() {
-		if (leaveRoomTask == null)
+		if (session.leaveRoomTask == null) {
+			stopPoll();
 			new LeaveRoomTask(this).execute();
+		}
 	}
 
 	private void onLeaveRoom() {
 		finish();
 	}
 
+	// still in the room, so carry on following it
 	private void onLeaveRoom(CampfireException e) {
+		startPoll();
 		Utils.alert(this, e);
 	}
 
@@ -420,10 +524,19 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 	    	.setIcon(android.R.drawable.ic_menu_add);
         menu.add(2, MENU_LEAVE, 2, R.string.menu_leave)
         	.setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+        menu.add(3, MENU_WATCH, 3, R.string.menu_watch)
+        	.setIcon(android.R.drawable.ic_popup_reminder);
 
         return result;
     }
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		boolean watched = Utils.getWatchedRooms(this).contains(roomId);
+		menu.findItem(MENU_WATCH).setTitle(watched ? R.string.menu_unwatch : R.string.menu_watch);
+		return super.onPrepareOptionsMenu(menu);
+	}
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
     	switch(item.getItemId()) {
@@ -431,18 +544,18 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     		startActivity(new Intent(this, Settings.class));
     		break;
     	case MENU_SHORTCUT:
-    		Utils.installShortcut(this, room);
+    		Utils.installShortcut(this, session.room);
     		break;
     	case MENU_LEAVE:
     		leaveRoom();
     		break;
+    	case MENU_WATCH:
+    		Utils.setWatched(this, roomId, !Utils.getWatchedRooms(this).contains(roomId));
+    		break;
     	}
     	return super.onOptionsItemSelected(item);
     }
 
-    private boolean shouldJoin() {
-    	return (System.currentTimeMillis() - lastJoined) > (JOIN_TIMEOUT * 1000);
-    }
 
     @Override
     public Campfire getCampfire() {
@@ -451,7 +564,7 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 
     @Override
     public Room getRoom() {
-    	return room;
+    	return session.room;
     }
 
     @Override
@@ -461,9 +574,9 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 
     @Override
     public void loadImage(String url, String messageId) {
-    	if (!loadImageTasks.containsKey(messageId)) {
+    	if (!session.loadImageTasks.containsKey(messageId)) {
 			try {
-				loadImageTasks.put(messageId, (LoadImageTask) new LoadImageTask(this, messageId).execute(url));
+				session.loadImageTasks.put(messageId, (LoadImageTask) new LoadImageTask(this, messageId).execute(url));
 			} catch (RejectedExecutionException e) {
 				onLoadImage(null, messageId); // if we can't run it, then just show the text and close up shop
 			}
@@ -472,14 +585,14 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 
     @Override
     public BitmapDrawable cachedImage(String messageId) {
-    	return cachedImages.get(messageId);
+    	return session.images.get(messageId);
     }
 
     @Override
     public void onLoadImage(BitmapDrawable image, Object tag) {
     	String messageId = (String) tag;
-    	loadImageTasks.remove(messageId); // harmless if it doesn't exist
-    	cachedImages.put(messageId, image);
+    	session.loadImageTasks.remove(messageId); // harmless if it doesn't exist
+    	session.images.put(messageId, image);
 
 		MessageAdapter.ViewHolder holder = new MessageAdapter.ViewHolder();
 		holder.messageId = messageId;
@@ -495,123 +608,81 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 		}
     }
 
-    private class PollTask extends AsyncTask<Void,ArrayList<Message>,Integer> {
-    	public RoomView context;
-    	public CampfireException exception = null;
-    	private int pollFailures = 0;
+	// Only journals the message in the Outbox, which sends it when the room's earlier messages have gone.
+	class SpeakTask extends AsyncTask<Void,Void,CampfireException> {
+		public RoomView context;
+		private Message transitMessage;
 
-    	public PollTask(RoomView context) {
-    		super();
-    		this.context = context;
-    	}
+		public SpeakTask(RoomView context, Message transitMessage) {
+			super();
+			this.context = context;
+			this.context.session.speakTasks.put(transitMessage.id, this);
+			this.transitMessage = transitMessage;
+		}
 
-    	protected void onScreenLoad(RoomView context) {
-       		this.context = context;
-       	}
+		protected void onScreenLoad(RoomView context) {
+			this.context = context;
+		}
 
-    	@Override
-    	protected Integer doInBackground(Void... nothing) {
-    		new Thread() {
-
-    		@Override @SuppressWarnings("unchecked") // for the autocasting to publishProgress
-				public void run() {
-		    		while(true) {
-						try {
-							publishProgress(context.poll(context.room, context.users));
-
-							// ping the room so we don't get idle-kicked out
-							if (context.shouldJoin()) {
-								context.room.join();
-								context.lastJoined = System.currentTimeMillis();
-							}
-						} catch(CampfireException e) {
-							exception = e;
-							publishProgress((ArrayList<Message>) null);
-						}
-
-						try {
-							sleep(AUTOPOLL_INTERVAL * 1000);
-						} catch(InterruptedException ex) {
-							// well, I never
-						}
-					}
-    			}
-    		}.start();
-    		return -1; // Integer instead of Void, to avoid compiler errors in Eclipse
-    	}
+		@Override
+		protected CampfireException doInBackground(Void... nothing) {
+			try {
+				Utils.outbox(context, context.campfire).queue(context.session.room, transitMessage);
+				return null;
+			} catch (CampfireException e) {
+				return e;
+			}
+		}
 
-    	@Override
-    	public void onProgressUpdate(ArrayList<Message>... messages) {
-    		if (exception == null) {
-    			pollFailures = 0;
-    			context.onPoll(messages[0]);
-    		} else {
-    			pollFailures += 1;
-    			context.onPoll(new CampfireException(exception, "Connection error while trying to poll. (Try #" + pollFailures + ")"));
-    		}
-    	}
+		@Override
+		protected void onPostExecute(CampfireException exception) {
+			context.session.speakTasks.remove(transitMessage.id);
+			if (exception != null) {
+				ArrayList<String> transitIds = new ArrayList<String>();
+				transitIds.add(transitMessage.id);
+				context.onSpeak(exception, transitIds);
+			}
+		}
 	}
 
-	private class SpeakTask extends AsyncTask<Void,Void,Message> {
+	// Opens the Outbox (sending anything left over) and starts listening for the room's results.
+	class LoadOutboxTask extends AsyncTask<Void,Void,ArrayList<Message>> {
 		public RoomView context;
-    	public CampfireException exception = null;
-    	private Message transitMessage;
 
-    	public SpeakTask(RoomView context, Message transitMessage) {
-    		super();
-    		this.context = context;
-    		this.context.speakTasks.put(transitMessage.id, this);
-    		this.transitMessage = transitMessage;
-    	}
-
-       	protected void onScreenLoad(RoomView context) {
-       		this.context = context;
-       	}
-
-    	@Override
-    	protected Message doInBackground(Void... nothing) {
-    		try {
-    			// in case we've been idle-kicked out since we last spoke
-    			if (context.shouldJoin()) {
-    				context.room.join();
-    				context.lastJoined = System.currentTimeMillis();
-    			}
+		public LoadOutboxTask(RoomView context) {
+			super();
+			this.context = context;
+			this.context.session.loadOutboxTask = this;
+		}
 
-    			Message newMessage = context.room.speak(transitMessage.body);
-    			context.fillPerson(newMessage, context.users);
-    			return newMessage;
-			} catch (CampfireException e) {
-				this.exception = e;
-				return null;
-			}
-    	}
+		public void onScreenLoad(RoomView context) {
+			this.context = context;
+		}
 
-    	@Override
-    	protected void onPostExecute(Message newMessage) {
-    		context.speakTasks.remove(transitMessage.id);
+		@Override
+		protected ArrayList<Message> doInBackground(Void... nothing) {
+			return Utils.outbox(context, context.campfire).pending(context.roomId);
+		}
 
-    		if (exception == null)
-    			context.onSpeak(newMessage, transitMessage.id);
-    		else
-    			context.onSpeak(exception, transitMessage.id);
-    	}
+		@Override
+		protected void onPostExecute(ArrayList<Message> pending) {
+			RoomSession session = context.session;
+			session.loadOutboxTask = null;
+			session.outboxListener = new RoomOutboxListener(context, context.campfire, session);
+			Outbox.shared().setListener(session.roomId, session.outboxListener);
+			context.onLoadOutbox(pending);
+		}
 	}
 
-	private class LoadRoomTask extends AsyncTask<Void,String,CampfireException> {
+	class LoadRoomTask extends AsyncTask<Void,String,CampfireException> {
 		public RoomView context;
 
     	public Room room = null;
-    	public HashMap<String,User> users;
 
     	public LoadRoomTask(RoomView context) {
     		super();
     		this.context = context;
-    		this.context.loadRoomTask = this;
-
-    		// get the current state of the user cache, so that we can write to it as we poll
-    		// and then assign it back to the new context
-    		// preserves caching in the case of a screen flip during this task
-    		users = this.context.users;
+    		this.context.session.loadRoomTask = this;
     	}
 
     	public void onScreenLoad(RoomView context) {
@@ -624,13 +695,8 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     			room = Room.find(context.campfire, context.roomId);
 
     			// cache the initial users now while we can
-    			if (room.initialUsers != null) {
-    				int length = room.initialUsers.size();
-    				for (int i=0; i<length; i++) {
-    					User user = room.initialUsers.get(i);
-    					users.put(user.id, user);
-    				}
-    			}
+    			if (room.initialUsers != null)
+    				Utils.userCache(context, context.campfire).putAll(room.initialUsers);
 			} catch (CampfireException e) {
 				return e;
 			}
@@ -639,10 +705,9 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
 
     	@Override
     	protected void onPostExecute(CampfireException exception) {
-    		context.loadRoomTask = null;
+    		context.session.loadRoomTask = null;
 
-    		context.room = room;
-    		context.users = users;
+    		context.session.room = room;
 
     		if (exception == null)
     			context.onRoomLoaded();
@@ -651,7 +716,107 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     	}
 	}
 
-	private class LeaveRoomTask extends AsyncTask<Void,Void,Boolean> {
+	class RestoreTask extends AsyncTask<Void,Void,RoomSnapshot> {
+		public RoomView context;
+
+		public RestoreTask(RoomView context) {
+			super();
+			this.context = context;
+			this.context.session.restoreTask = this;
+		}
+
+		public void onScreenLoad(RoomView context) {
+			this.context = context;
+		}
+
+		@Override
+		protected RoomSnapshot doInBackground(Void... nothing) {
+			try {
+				return RoomSnapshot.read(Utils.roomSnapshotFile(context, context.roomId), context.campfire);
+			} catch (IOException e) {
+				return null; // the room will just be loaded from scratch
+			}
+		}
+
+		@Override
+		protected void onPostExecute(RoomSnapshot snapshot) {
+			context.session.restoreTask = null;
+			context.onRestore(snapshot);
+		}
+	}
+
+	// holds on to the application context and not the activity, since it may outlive it
+	private static class SaveSnapshotTask extends AsyncTask<Void,Void,Void> {
+		private File file;
+		private RoomSnapshot snapshot;
+
+		public SaveSnapshotTask(Context context, RoomSnapshot snapshot) {
+			super();
+			this.file = Utils.roomSnapshotFile(context.getApplicationContext(), snapshot.room.id);
+			this.snapshot = snapshot;
+		}
+
+		@Override
+		protected Void doInBackground(Void... nothing) {
+			// one at a time, as they share a temporary file
+			synchronized (SaveSnapshotTask.class) {
+				try {
+					snapshot.write(file);
+				} catch (IOException e) {
+					file.delete(); // better to load from scratch than from something half-written
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class SaveUnreadTask extends AsyncTask<Void,Void,Void> {
+		private Context context;
+		private Campfire campfire;
+
+		public SaveUnreadTask(Context context, Campfire campfire) {
+			super();
+			this.context = context.getApplicationContext();
+			this.campfire = campfire;
+		}
+
+		@Override
+		protected Void doInBackground(Void... nothing) {
+			Utils.saveUnreadCounts(context, campfire);
+			return null;
+		}
+	}
+
+	class LoadStoredTask extends AsyncTask<Void,Void,ArrayList<Message>> {
+		public RoomView context;
+
+		public LoadStoredTask(RoomView context) {
+			super();
+			this.context = context;
+			this.context.session.loadStoredTask = this;
+		}
+
+		public void onScreenLoad(RoomView context) {
+			this.context = context;
+		}
+
+		@Override
+		protected ArrayList<Message> doInBackground(Void... nothing) {
+			try {
+				return context.store.recent(context.roomId, context.preferredMaxMessages());
+			} catch (CampfireException e) {
+				return new ArrayList<Message>();
+			}
+		}
+
+		@Override
+		protected void onPostExecute(ArrayList<Message> stored) {
+			context.session.loadStoredTask = null;
+			context.onLoadStored(stored);
+		}
+	}
+
+	class LeaveRoomTask extends AsyncTask<Void,Void,Boolean> {
 		public RoomView context;
     	public CampfireException exception = null;
     	private ProgressDialog dialog = null;
@@ -659,7 +824,7 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     	public LeaveRoomTask(RoomView context) {
     		super();
     		this.context = context;
-    		this.context.leaveRoomTask = this;
+    		this.context.session.leaveRoomTask = this;
     	}
 
     	@Override
@@ -690,8 +855,10 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     	@Override
     	protected Boolean doInBackground(Void... nothing) {
     		try {
+    			Room room = context.session.room;
     			if (room != null) {
     				room.leave();
+    				Presence.shared().left(room.id);
     				return Boolean.TRUE;
     			} else
     				return Boolean.FALSE;
@@ -706,28 +873,22 @@ public class RoomView extends ListActivity implements RoomContext, LoadsImage {
     		if (dialog != null && dialog.isShowing())
     			dialog.dismiss();
 
-    		context.leaveRoomTask = null;
+    		context.session.leaveRoomTask = null;
 
     		if (value == Boolean.TRUE && exception == null)
     			context.onLeaveRoom();
     		else
     			context.onLeaveRoom(exception);
     	}
-	}
 
-	static class RoomViewHolder {
-		Campfire campfire;
-		Room room;
-		ArrayList<Message> messages;
-		HashMap<String,Message> transitMessages;
-		Message errorMessage;
-		HashMap<String,User> users;
-		HashMap<String,SpeakTask> speakTasks;
-		HashMap<String,LoadImageTask> loadImageTasks;
-		LoadRoomTask loadRoomTask;
-		PollTask pollTask;
-		LeaveRoomTask leaveRoomTask;
-		HashMap<String,BitmapDrawable> cachedImages;
-		boolean shared;
+    	// backed out of from the dialog, so as far as we know we're still in the room, and carry on following it
+    	@Override
+    	protected void onCancelled() {
+    		if (dialog != null && dialog.isShowing())
+    			dialog.dismiss();
+
+    		context.session.leaveRoomTask = null;
+    		context.startPoll();
+    	}
 	}
 }
@@ -0,0 +1,311 @@
+package campyre.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import campyre.java.Campfire;
+import campyre.java.CampfireException;
+import campyre.java.KeywordMatcher;
+import campyre.java.Message;
+import campyre.java.PollScheduler;
+import campyre.java.Room;
+import campyre.java.User;
+
+// Watches the rooms the user asked to be told about, while they're not on screen, and posts a
+// notification (one per room, with a count) when someone mentions the user's name or one of their keywords.
+//
+// The rooms are polled through the process-wide PollScheduler, at the slower background pace, so they
+// share wakeups with any open rooms. Streaming isn't used here, since that would tie up a thread per room.
+// A room that's open (has a RoomSession) isn't polled here at all: its own poller hands its messages over instead.
+// The rooms aren't joined either: reading them doesn't need it, and the user shouldn't show up in every room they watch.
+//
+// Every message is checked against all the keywords in one pass by a KeywordMatcher, built once
+// whenever the keywords change, so a long keyword list doesn't cost any more per message.
+public class RoomWatcher extends Service implements PollScheduler.Listener {
+	private static final int NOTIFICATION_ID = 1;
+
+	// how many messages to ask for when polling; the first poll only asks for the latest one, as a starting point
+	private static final int WATCH_MESSAGES = 20;
+
+	// mentions notified since the room was last looked at, by room id
+	private static HashMap<String,Integer> counts = new HashMap<String,Integer>();
+
+	// the service, while it's running
+	private static RoomWatcher running = null;
+
+	private Campfire campfire;
+	private HashMap<String,PollScheduler.Subscription> subscriptions = new HashMap<String,PollScheduler.Subscription>();
+	private HashMap<String,String> roomNames = null;
+
+	// subscriptions that have found where to start from, guarded by itself
+	private HashSet<PollScheduler.Subscription> started = new HashSet<PollScheduler.Subscription>();
+
+	// subscriptions paused because their room was opened, guarded by itself
+	private HashSet<PollScheduler.Subscription> deferred = new HashSet<PollScheduler.Subscription>();
+
+	// guarded by this, built on the first poll that needs it
+	private KeywordMatcher matcher = null;
+
+	// Starts the service if there are rooms to watch, stops it otherwise.
+	// Call whenever the watched rooms, the keywords, or the logged in user change.
+	public static void update(Context context) {
+		Intent intent = new Intent(context, RoomWatcher.class);
+		if (Utils.getCampfire(context) != null && !Utils.getWatchedRooms(context).isEmpty())
+			context.startService(intent);
+		else
+			context.stopService(intent);
+	}
+
+	// Call when a room's session closes, so the room is polled here again if it's watched.
+	public static void closed(Context context, String roomId) {
+		if (Utils.getWatchedRooms(context).contains(roomId))
+			update(context);
+	}
+
+	// New messages from an open room's own poller, checked for mentions as if they'd been polled here.
+	public static void arrived(Room room, ArrayList<Message> messages) {
+		RoomWatcher watcher;
+		synchronized (RoomWatcher.class) {
+			watcher = running;
+		}
+		if (watcher != null && watcher.watching(room.id))
+			watcher.check(new Room(room.campfire, room.id), messages);
+	}
+
+	// the user is looking at the room, so any mentions in it have been seen
+	public static void seen(Context context, String roomId) {
+		synchronized (counts) {
+			if (counts.remove(roomId) == null)
+				return;
+		}
+		((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE)).cancel(roomId, NOTIFICATION_ID);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		synchronized (RoomWatcher.class) {
+			running = this;
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		Campfire campfire = Utils.getCampfire(this);
+		ArrayList<String> watched = Utils.getWatchedRooms(this);
+		if (campfire == null || watched.isEmpty()) {
+			stopSelf();
+			return START_NOT_STICKY;
+		}
+
+		// a different user, or the keywords may have changed
+		if (this.campfire == null || !campfire.user_id.equals(this.campfire.user_id))
+			cancelAll();
+		this.campfire = campfire;
+		synchronized (this) {
+			matcher = null;
+		}
+
+		Iterator<String> ids = new ArrayList<String>(subscriptions.keySet()).iterator();
+		while (ids.hasNext()) {
+			String id = ids.next();
+			if (!watched.contains(id))
+				stop(subscriptions.remove(id));
+		}
+
+		// rooms closed since they were deferred start again from their latest message
+		ids = new ArrayList<String>(subscriptions.keySet()).iterator();
+		while (ids.hasNext()) {
+			String id = ids.next();
+			boolean wasDeferred;
+			synchronized (deferred) {
+				wasDeferred = deferred.contains(subscriptions.get(id));
+			}
+			if (wasDeferred && !RoomSession.exists(id))
+				stop(subscriptions.remove(id));
+		}
+
+		for (int i=0; i<watched.size(); i++) {
+			String id = watched.get(i);
+			if (!subscriptions.containsKey(id) && !RoomSession.exists(id)) {
+				PollScheduler.Subscription subscription = PollScheduler.shared().subscribe(new Room(campfire, id), null, 1, this);
+				subscription.setVisible(false);
+				subscription.setBackfill(false);
+				subscriptions.put(id, subscription);
+			}
+		}
+
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		synchronized (RoomWatcher.class) {
+			running = null;
+		}
+		cancelAll();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	private void cancelAll() {
+		Iterator<PollScheduler.Subscription> all = subscriptions.values().iterator();
+		while (all.hasNext())
+			stop(all.next());
+		subscriptions.clear();
+		synchronized (this) {
+			roomNames = null;
+		}
+	}
+
+	private void stop(PollScheduler.Subscription subscription) {
+		subscription.cancel();
+		synchronized (started) {
+			started.remove(subscription);
+		}
+		synchronized (deferred) {
+			deferred.remove(subscription);
+		}
+	}
+
+	// from the settings rather than the subscriptions, since it's asked from other threads
+	private synchronized boolean watching(String roomId) {
+		return campfire != null && Utils.getWatchedRooms(this).contains(roomId);
+	}
+
+	// on a worker thread
+	@Override
+	public void onPoll(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {
+		// opened since it was subscribed to, its own poller takes over until it's closed
+		if (RoomSession.exists(subscription.room.id)) {
+			subscription.pause();
+			synchronized (deferred) {
+				deferred.add(subscription);
+			}
+			return;
+		}
+
+		if (!messages.isEmpty()) {
+			Utils.unreadCounts(this, campfire).arrived(subscription.room.id, campfire.user_id, messages);
+			Utils.saveUnreadCountsLater(this, campfire);
+		}
+
+		// the first poll only finds where to start from
+		synchronized (started) {
+			if (started.add(subscription)) {
+				subscription.setMaxMessages(WATCH_MESSAGES);
+				return;
+			}
+		}
+
+		check(subscription.room, messages);
+	}
+
+	private void check(Room room, ArrayList<Message> messages) {
+		RoomSession session = RoomSession.get(room.id);
+		if (session != null && session.visible)
+			return;
+
+		KeywordMatcher matcher = matcher();
+		if (matcher.isEmpty())
+			return;
+
+		ArrayList<Message> mentions = new ArrayList<Message>();
+		for (int i=0; i<messages.size(); i++) {
+			Message message = messages.get(i);
+			if (message.type != Message.Type.TEXT && message.type != Message.Type.PASTE)
+				continue;
+			if (campfire.user_id.equals(message.user_id))
+				continue;
+			if (matcher.find(message.body) != null)
+				mentions.add(message);
+		}
+
+		if (!mentions.isEmpty())
+			notify(room, mentions);
+	}
+
+	@Override
+	public void onPollFailed(PollScheduler.Subscription subscription, CampfireException exception) {
+		// the scheduler backs off on its own, and tries again
+	}
+
+	// never called, the subscriptions aren't backfilled: a mention in a gap is only found by opening the room
+	@Override
+	public void onBackfill(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {}
+
+	// The user's own name (and first name) are always keywords. If the user can't be looked up,
+	// the configured keywords are used alone, and the name is tried again when they next change.
+	private synchronized KeywordMatcher matcher() {
+		if (matcher == null) {
+			ArrayList<String> keywords = Utils.getNotifyKeywords(this);
+			try {
+				User user = Utils.userCache(this, campfire).find(campfire, campfire.user_id);
+				if (user != null && user.name != null) {
+					keywords.add(user.name);
+					keywords.add(user.name.split(" ")[0]);
+				}
+			} catch (CampfireException e) {
+				// just the keywords, then
+			}
+			matcher = new KeywordMatcher(keywords);
+		}
+		return matcher;
+	}
+
+	private void notify(Room room, ArrayList<Message> mentions) {
+		try {
+			Utils.userCache(this, campfire).fillPeople(campfire, mentions);
+		} catch (CampfireException e) {
+			// notified without names
+		}
+
+		int count;
+		synchronized (counts) {
+			Integer previous = counts.get(room.id);
+			count = (previous == null ? 0 : previous) + mentions.size();
+			counts.put(room.id, count);
+		}
+
+		room.name = roomName(room.id);
+		Message last = mentions.get(mentions.size() - 1);
+		String text = (last.person != null ? last.person + ": " : "") + last.body;
+		String title = (room.name != null) ? room.name : getString(R.string.app_name);
+
+		PendingIntent open = PendingIntent.getActivity(this, room.id.hashCode(), Utils.roomIntent(room), PendingIntent.FLAG_UPDATE_CURRENT);
+		Notification notification = new Notification(android.R.drawable.stat_notify_chat, text, System.currentTimeMillis());
+		notification.setLatestEventInfo(this, title, text, open);
+		notification.flags |= Notification.FLAG_AUTO_CANCEL;
+		notification.defaults = Notification.DEFAULT_ALL;
+		if (count > 1)
+			notification.number = count;
+
+		((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(room.id, NOTIFICATION_ID, notification);
+	}
+
+	// from the room list as it was last loaded, disk I/O
+	private synchronized String roomName(String roomId) {
+		if (roomNames == null) {
+			roomNames = new HashMap<String,String>();
+			ArrayList<Room> rooms = Utils.savedRooms(this, campfire);
+			if (rooms != null) {
+				for (int i=0; i<rooms.size(); i++)
+					roomNames.put(rooms.get(i).id, rooms.get(i).name);
+			}
+		}
+		return roomNames.get(roomId);
+	}
+}
@@ -0,0 +1,146 @@
+package campyre.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import campyre.java.CampfireException;
+import campyre.java.Message;
+import campyre.java.MessageStore;
+
+// MessageStore backed by SQLite. Messages are stored in their compact binary form,
+// and ordered by their (numeric) Campfire id.
+public class SQLiteMessageStore extends SQLiteOpenHelper implements MessageStore {
+	private static final String DATABASE_NAME = "messages.db";
+	private static final int DATABASE_VERSION = 1;
+
+	private static SQLiteMessageStore instance = null;
+
+	private SQLiteMessageStore(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	public static synchronized SQLiteMessageStore get(Context context) {
+		if (instance == null)
+			instance = new SQLiteMessageStore(context.getApplicationContext());
+		return instance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE messages (" +
+				"room_id TEXT NOT NULL, " +
+				"id TEXT NOT NULL, " +
+				"seq INTEGER NOT NULL, " +
+				"data BLOB NOT NULL, " +
+				"PRIMARY KEY (room_id, id))");
+		db.execSQL("CREATE INDEX messages_room_seq ON messages (room_id, seq)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// it's only a cache
+		db.execSQL("DROP TABLE IF EXISTS messages");
+		onCreate(db);
+	}
+
+	@Override
+	public synchronized ArrayList<Message> recent(String roomId, int max) throws CampfireException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		try {
+			Cursor cursor = getReadableDatabase().query("messages", new String[] {"data"},
+					"room_id = ?", new String[] {roomId}, null, null, "seq DESC", String.valueOf(max));
+			try {
+				while (cursor.moveToNext())
+					messages.add(0, decode(cursor.getBlob(0)));
+			} finally {
+				cursor.close();
+			}
+		} catch (SQLException e) {
+			throw new CampfireException(e, "Couldn't read stored messages.");
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't read stored messages.");
+		}
+		return messages;
+	}
+
+	@Override
+	public synchronized void add(String roomId, List<Message> messages, int max) throws CampfireException {
+		try {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO messages (room_id, id, seq, data) VALUES (?, ?, ?, ?)");
+				int length = messages.size();
+				for (int i=0; i<length; i++) {
+					Message message = messages.get(i);
+					insert.bindString(1, roomId);
+					insert.bindString(2, message.id);
+					insert.bindLong(3, sequence(message.id));
+					insert.bindBlob(4, encode(message));
+					insert.executeInsert();
+				}
+
+				db.execSQL("DELETE FROM messages WHERE room_id = ? AND seq NOT IN " +
+						"(SELECT seq FROM messages WHERE room_id = ? ORDER BY seq DESC LIMIT " + max + ")",
+						new Object[] {roomId, roomId});
+
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLException e) {
+			throw new CampfireException(e, "Couldn't store messages.");
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't store messages.");
+		}
+	}
+
+	@Override
+	public synchronized void clear(String roomId) throws CampfireException {
+		try {
+			getWritableDatabase().delete("messages", "room_id = ?", new String[] {roomId});
+		} catch (SQLException e) {
+			throw new CampfireException(e, "Couldn't clear stored messages.");
+		}
+	}
+
+	@Override
+	public synchronized void clearAll() throws CampfireException {
+		try {
+			getWritableDatabase().delete("messages", null, null);
+		} catch (SQLException e) {
+			throw new CampfireException(e, "Couldn't clear stored messages.");
+		}
+	}
+
+	private static long sequence(String id) {
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static byte[] encode(Message message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		message.write(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Message decode(byte[] data) throws IOException {
+		return Message.read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+}
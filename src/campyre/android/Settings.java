@@ -18,6 +18,11 @@ public class Settings extends PreferenceActivity {
 	public static final String LOAD_IMAGES_KEY = "load_images";
 	public static final boolean LOAD_IMAGES_DEFAULT = true;
 	
+	public static final String NOTIFY_KEYWORDS_KEY = "notify_keywords";
+	
+	public static final String MERGE_BURSTS_KEY = "merge_bursts";
+	public static final boolean MERGE_BURSTS_DEFAULT = false;
+	
 	@SuppressWarnings("deprecation")
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +46,14 @@ public class Settings extends PreferenceActivity {
 				return true;
 			}
 		});
+		
+		// the watcher rebuilds its matcher once the new keywords are saved
+		findPreference(NOTIFY_KEYWORDS_KEY).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+			@Override public boolean onPreferenceChange(Preference preference, Object newValue) {
+				RoomWatcher.update(Settings.this);
+				return true;
+			}
+		});
 	}
 	
 	@SuppressWarnings("deprecation")
@@ -1,11 +1,13 @@
 package campyre.android;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -63,13 +65,28 @@ public class ShareImage extends Activity {
 	public void uploadImage() throws FileNotFoundException, CampfireException {
 		Uri uri = (Uri) getIntent().getExtras().get("android.intent.extra.STREAM");
 		
-		InputStream stream = getContentResolver().openInputStream(uri);
 		String mimeType = getContentResolver().getType(uri);
 		if (mimeType == null)
 			throw new CampfireException("Couldn't figure out what kind of data you're sharing.");
 		String filename = filenameFor(mimeType);
 		
-		room.uploadImage(stream, filename, mimeType);
+		long length = lengthOf(uri);
+		InputStream stream = getContentResolver().openInputStream(uri);
+		room.uploadImage(stream, length, filename, mimeType);
+	}
+	
+	// so the upload can be streamed with a fixed length, or -1 if the provider doesn't know it
+	private long lengthOf(Uri uri) {
+		try {
+			AssetFileDescriptor descriptor = getContentResolver().openAssetFileDescriptor(uri, "r");
+			if (descriptor == null)
+				return -1;
+			long length = descriptor.getLength();
+			descriptor.close();
+			return length == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : length;
+		} catch (IOException e) {
+			return -1;
+		}
 	}
 	
 	@Override
@@ -1,30 +1,57 @@
 package campyre.android;
 
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.concurrent.RejectedExecutionException;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import campyre.android.MessageAdapter.RoomContext;
 import campyre.java.Campfire;
 import campyre.java.CampfireException;
 import campyre.java.Message;
 import campyre.java.Room;
-import campyre.java.User;
+import campyre.java.SearchIndex;
+import campyre.java.TranscriptArchive;
+import campyre.java.TranscriptCache;
+import campyre.java.UserCache;
 
 public class TranscriptView extends ListActivity implements RoomContext, LoadImageTask.LoadsImage {
+	private static final int ARCHIVE_PAGE = 200;
+	private static final int SEARCH_RESULTS = 50;
+	
+	private static final int MENU_SEARCH = 0;
+	private static final int MENU_TRANSCRIPT = 1;
+	private static final int MENU_PREVIOUS = 2;
+	private static final int MENU_NEXT = 3;
+	private static final int MENU_TODAY = 4;
+	
 	private Campfire campfire;
 	private Room room;
+	private Date day; // the start of the day being shown
 	private ArrayList<Message> messages;
 	
+	// when not null, the list is showing these search results instead of the transcript
+	private ArrayList<Message> results;
+	
 	private LoadTranscriptTask loadTranscriptTask;
+	private SearchTask searchTask;
 	private HashMap<String,LoadImageTask> loadImageTasks = new HashMap<String,LoadImageTask>();
-	private HashMap<String,BitmapDrawable> cachedImages = new HashMap<String,BitmapDrawable>();
+	
+	// images are decoded once per room, for the chat and the transcript alike
+	private RoomSession session;
 	
 	@SuppressWarnings("deprecation")
 	@Override
@@ -36,37 +63,79 @@ public class TranscriptView extends ListActivity implements RoomContext, LoadIma
 		
 		campfire = Utils.getCampfire(this);
 		room = new Room(campfire, extras.getString("room_id"));
+		session = RoomSession.attach(room.id, this);
+		day = TranscriptCache.startOf(new Date());
 		
 		TranscriptViewHolder holder = (TranscriptViewHolder) getLastNonConfigurationInstance();
 		if (holder != null) {
+			day = holder.day;
 			messages = holder.messages;
 			loadTranscriptTask = holder.loadTranscriptTask;
-			cachedImages = holder.cachedImages;
+			results = holder.results;
+			searchTask = holder.searchTask;
 			loadImageTasks = holder.loadImageTasks;
 		}
 		
 		loadTranscripts();
 	}
 	
+	@Override
+	public void onDestroy() {
+		session.detach(this);
+		super.onDestroy();
+	}
+	
 	@Override
 	public Object onRetainNonConfigurationInstance() {
-		return new TranscriptViewHolder(messages, loadTranscriptTask, loadImageTasks, cachedImages);
+		TranscriptViewHolder holder = new TranscriptViewHolder(messages, loadTranscriptTask, loadImageTasks);
+		holder.day = day;
+		holder.results = results;
+		holder.searchTask = searchTask;
+		return holder;
 	}
 	
 	public void loadTranscripts() {
-		if (messages != null) 
+		// the task may have already shown messages with placeholder names, and still be running
+		if (loadTranscriptTask != null)
+			loadTranscriptTask.onScreenLoad(this);
+		if (searchTask != null)
+			searchTask.onScreenLoad(this);
+		
+		updateTitle();
+		if (results != null)
+			displayResults();
+		else if (messages != null) 
 			displayTranscript();
-		else {
-			if (loadTranscriptTask == null)
-				loadTranscriptTask = (LoadTranscriptTask) new LoadTranscriptTask(this).execute();
-			else
-				loadTranscriptTask.onScreenLoad(this);
-		}
+		else if (loadTranscriptTask == null)
+			loadTranscriptTask = (LoadTranscriptTask) new LoadTranscriptTask(this, day).execute();
+	}
+	
+	// Switches to another day's transcript. Anything still loading for the old day is left to finish
+	// (and be cached) in the background, but won't be shown.
+	public void showDay(Date newDay) {
+		newDay = TranscriptCache.startOf(newDay);
+		if (newDay.after(new Date()))
+			return;
+		
+		day = newDay;
+		messages = null;
+		results = null;
+		loadTranscriptTask = null;
+		setListAdapter(new MessageAdapter(this, new ArrayList<Message>()));
+		loadTranscripts();
+	}
+	
+	private void updateTitle() {
+		if (TranscriptCache.isToday(day))
+			setTitle(R.string.tab_transcript);
+		else
+			setTitle(DateFormat.getDateInstance(DateFormat.MEDIUM).format(day));
 	}
 	
 	public void onLoadTranscripts(ArrayList<Message> messages) {
 		this.messages = messages;
-		displayTranscript();
+		if (results == null)
+			displayTranscript();
 	}
 	
 	public void onLoadTranscripts(CampfireException exception) {
@@ -77,6 +146,100 @@ public class TranscriptView extends ListActivity implements RoomContext, LoadIma
 		setListAdapter(new MessageAdapter(this, messages));
 	}
 	
+	public void search(String query) {
+		if (searchTask == null && query.trim().length() > 0)
+			searchTask = (SearchTask) new SearchTask(this).execute(query);
+	}
+	
+	public void onSearch(ArrayList<Message> results) {
+		if (results.isEmpty())
+			Utils.alert(this, getString(R.string.search_no_results));
+		else {
+			this.results = results;
+			displayResults();
+		}
+	}
+	
+	public void onSearch(CampfireException exception) {
+		Utils.alert(this, exception);
+	}
+	
+	public void displayResults() {
+		setListAdapter(new MessageAdapter(this, results));
+	}
+	
+	public void showTranscript() {
+		results = null;
+		if (messages != null)
+			displayTranscript();
+	}
+	
+	private void showSearchDialog() {
+		final EditText query = new EditText(this);
+		query.setSingleLine();
+		query.setHint(R.string.search_hint);
+		
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.menu_search)
+			.setView(query)
+			.setPositiveButton(R.string.menu_search, new DialogInterface.OnClickListener() {
+				@Override public void onClick(DialogInterface dialog, int which) {
+					search(query.getText().toString());
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+	}
+	
+	@Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+	    boolean result = super.onCreateOptionsMenu(menu);
+	    
+	    menu.add(0, MENU_SEARCH, 0, R.string.menu_search)
+	    	.setIcon(android.R.drawable.ic_menu_search);
+	    menu.add(1, MENU_TRANSCRIPT, 1, R.string.menu_transcript)
+	    	.setIcon(android.R.drawable.ic_menu_revert);
+	    menu.add(2, MENU_PREVIOUS, 2, R.string.menu_previous_day)
+	    	.setIcon(android.R.drawable.ic_media_previous);
+	    menu.add(2, MENU_NEXT, 3, R.string.menu_next_day)
+	    	.setIcon(android.R.drawable.ic_media_next);
+	    menu.add(2, MENU_TODAY, 4, R.string.menu_today)
+	    	.setIcon(android.R.drawable.ic_menu_today);
+	    
+	    return result;
+    }
+	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		boolean today = TranscriptCache.isToday(day);
+		menu.findItem(MENU_TRANSCRIPT).setVisible(results != null);
+		menu.findItem(MENU_NEXT).setVisible(!today);
+		menu.findItem(MENU_TODAY).setVisible(!today);
+		return super.onPrepareOptionsMenu(menu);
+	}
+	
+	@Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+    	switch(item.getItemId()) {
+    	case MENU_SEARCH:
+    		showSearchDialog();
+    		break;
+    	case MENU_TRANSCRIPT:
+    		showTranscript();
+    		break;
+    	case MENU_PREVIOUS:
+    		showDay(TranscriptCache.addDays(day, -1));
+    		break;
+    	case MENU_NEXT:
+    		showDay(TranscriptCache.addDays(day, 1));
+    		break;
+    	case MENU_TODAY:
+    		showDay(new Date());
+    		break;
+    	}
+    	return super.onOptionsItemSelected(item);
+    }
+	
 	@Override
     public Campfire getCampfire() {
     	return campfire;
@@ -107,7 +270,7 @@ public class TranscriptView extends ListActivity implements RoomContext, LoadIma
     public void onLoadImage(BitmapDrawable image, Object tag) {
     	String messageId = (String) tag;
     	loadImageTasks.remove(messageId); // harmless if it doesn't exist
-    	cachedImages.put(messageId, image);
+    	session.images.put(messageId, image);
 		
 		MessageAdapter.ViewHolder holder = new MessageAdapter.ViewHolder();
 		holder.messageId = messageId;
@@ -125,76 +288,184 @@ public class TranscriptView extends ListActivity implements RoomContext, LoadIma
     
     @Override
     public BitmapDrawable cachedImage(String messageId) {
-    	return cachedImages.get(messageId);
+    	return session.images.get(messageId);
     }
 	
-	private class LoadTranscriptTask extends AsyncTask<Void,Void,ArrayList<Message>> {
+	// Whatever's cached for the day is shown straight away, then the day is brought up to date,
+	// with placeholder names for any speakers that aren't cached yet until those have been fetched.
+	// Once it's loaded, the days either side are prefetched.
+	private class LoadTranscriptTask extends AsyncTask<Void,ArrayList<Message>,ArrayList<Message>> {
 		public TranscriptView context;
+		public Date day;
     	public CampfireException exception = null;
-    	HashMap<String,User> users;
     	
-    	public LoadTranscriptTask(TranscriptView context) {
+    	public LoadTranscriptTask(TranscriptView context, Date day) {
     		super();
     		this.context = context;
-    		this.users = new HashMap<String,User>();
+    		this.day = day;
     	}
     	
     	protected void onScreenLoad(TranscriptView context) {
        		this.context = context;
        	}
     	
-    	@Override
+    	@Override @SuppressWarnings("unchecked") // for the autocasting to publishProgress
     	protected ArrayList<Message> doInBackground(Void... nothing) {
+    		boolean today = TranscriptCache.isToday(day);
+    		ArrayList<Message> cached = null;
     		
     		try {
-				ArrayList<Message> messages = Message.allToday(context.room);
+    			TranscriptCache transcripts = Utils.transcriptCache(context, context.room.id);
+    			UserCache users = Utils.userCache(context, context.campfire);
+    			
+    			try {
+    				cached = transcripts.cached(day);
+    			} catch (CampfireException e) {
+    				// the cache will be rewritten by the load below
+    			}
+    			if (cached != null) {
+    				users.fillKnown(cached);
+    				publishProgress(cached);
+    			}
+    			
+				ArrayList<Message> messages = transcripts.load(context.room, day);
 				
-				int length = messages.size();
-				for (int i=0; i<length; i++) {
-					Message message = messages.get(i);
-					if (message.user_id != null)
-						fillPerson(message);
+				Set<String> missing = users.fillKnown(messages);
+				if (!missing.isEmpty()) {
+					publishProgress(messages);
+					users.fetchAll(context.campfire, missing);
+					users.fillKnown(messages);
 				}
+				Utils.saveUserCache(context, context.campfire);
+				
+				// fills in whatever of the day the archive missed
+				archive(messages);
+				
+				transcripts.prefetch(context.room, day);
 				return messages;
     		} catch (CampfireException e) {
     			this.exception = e;
-    			return null;
+    			if (cached != null || !today)
+    				return cached;
+    			return archivedToday();
+    		}
+    	}
+    	
+    	private void archive(ArrayList<Message> messages) {
+    		try {
+    			Utils.fillArchive(context, context.room.id, messages);
+    			Utils.searchIndex(context, context.room.id).flush();
+    		} catch (CampfireException e) {
+    			// the archive is a bonus, the transcript itself loaded fine
+    		}
+    	}
+    	
+    	// when Campfire can't be reached, whatever of today made it into the archive
+    	private ArrayList<Message> archivedToday() {
+    		ArrayList<Message> today = new ArrayList<Message>();
+    		try {
+    			TranscriptArchive archive = Utils.transcriptArchive(context, context.room.id);
+    			Date start = TranscriptCache.startOf(new Date());
+    			
+    			long ordinal = archive.ordinalAt(start);
+    			ArrayList<Message> page;
+    			do {
+    				page = archive.read(ordinal, ARCHIVE_PAGE);
+    				for (int i=0; i<page.size(); i++) {
+    					Message message = page.get(i);
+    					if (message.timestamp != null && !message.timestamp.before(start))
+    						today.add(message);
+    				}
+    				ordinal += page.size();
+    			} while (page.size() == ARCHIVE_PAGE);
+    		} catch (CampfireException e) {
+    			// nothing to fall back on, then
     		}
+    		return today;
+    	}
+    	
+    	// whether the screen has moved on to another day since this started
+    	private boolean stale() {
+    		return !day.equals(context.day);
+    	}
+    	
+    	@Override
+    	protected void onProgressUpdate(ArrayList<Message>... messages) {
+    		if (!stale())
+    			context.onLoadTranscripts(messages[0]);
     	}
     	
     	@Override
     	protected void onPostExecute(ArrayList<Message> messages) {
-    		context.loadTranscriptTask = null;
+    		if (context.loadTranscriptTask == this)
+    			context.loadTranscriptTask = null;
+    		if (stale())
+    			return;
     		
     		if (exception == null)
     			context.onLoadTranscripts(messages);
-    		else
+    		else {
+    			if (messages != null && !messages.isEmpty())
+    				context.onLoadTranscripts(messages);
     			context.onLoadTranscripts(exception);
+    		}
     	}
-    	
-    	private void fillPerson(Message message) throws CampfireException {
-    		User speaker;
-			if (users.containsKey(message.user_id))
-				speaker = users.get(message.user_id);
-			else {
-				speaker = User.find(context.campfire, message.user_id);
-				users.put(message.user_id, speaker);
+	}
+	
+	// Searches everything archived for this room, without going to Campfire.
+	// Speakers are named from the user cache as far as it goes, since this needs to work offline.
+	private class SearchTask extends AsyncTask<String,Void,ArrayList<Message>> {
+		public TranscriptView context;
+		public CampfireException exception = null;
+		
+		public SearchTask(TranscriptView context) {
+			super();
+			this.context = context;
+		}
+		
+		protected void onScreenLoad(TranscriptView context) {
+			this.context = context;
+		}
+		
+		@Override
+		protected ArrayList<Message> doInBackground(String... query) {
+			try {
+				TranscriptArchive archive = Utils.transcriptArchive(context, context.room.id);
+				SearchIndex index = Utils.searchIndex(context, context.room.id);
+				index.update(archive);
+				
+				ArrayList<Message> found = SearchIndex.messages(archive, index.search(query[0], SEARCH_RESULTS));
+				Utils.userCache(context, context.campfire).fillKnown(found);
+				return found;
+			} catch (CampfireException e) {
+				this.exception = e;
+				return null;
 			}
-			message.person = speaker.displayName();
-    	}
+		}
+		
+		@Override
+		protected void onPostExecute(ArrayList<Message> found) {
+			context.searchTask = null;
+			
+			if (exception == null)
+				context.onSearch(found);
+			else
+				context.onSearch(exception);
+		}
 	}
 	
 	static class TranscriptViewHolder {
+		Date day;
 		ArrayList<Message> messages;
+		ArrayList<Message> results;
 		LoadTranscriptTask loadTranscriptTask;
+		SearchTask searchTask;
 		HashMap<String,LoadImageTask> loadImageTasks;
-		HashMap<String,BitmapDrawable> cachedImages;
 		
-		public TranscriptViewHolder(ArrayList<Message> messages, LoadTranscriptTask loadTranscriptTask, HashMap<String,LoadImageTask> loadImageTasks, HashMap<String,BitmapDrawable> cachedImages) {
+		public TranscriptViewHolder(ArrayList<Message> messages, LoadTranscriptTask loadTranscriptTask, HashMap<String,LoadImageTask> loadImageTasks) {
 			this.messages = messages;
 			this.loadTranscriptTask = loadTranscriptTask;
 			this.loadImageTasks = loadImageTasks;
-			this.cachedImages = cachedImages;
 		}
 	}
 }
\ No newline at end of file
@@ -1,11 +1,19 @@
 package campyre.android;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -19,6 +27,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.text.Html;
 import android.text.Spanned;
@@ -32,10 +41,27 @@ import android.widget.TextView;
 import android.widget.Toast;
 import campyre.java.Campfire;
 import campyre.java.CampfireException;
+import campyre.java.Message;
+import campyre.java.Outbox;
 import campyre.java.Room;
+import campyre.java.SearchIndex;
+import campyre.java.TranscriptArchive;
+import campyre.java.TranscriptCache;
+import campyre.java.UnreadCounts;
+import campyre.java.UserCache;
 
 public class Utils {
 	public static final int ABOUT = 0;
+
+	public static final int MAX_RECENT_ROOMS = 5;
+	
+	private static boolean userCacheLoaded = false;
+	private static boolean unreadCountsLoaded = false;
+	
+	// in seconds, how long changes to the unread counts from arriving messages wait to be saved
+	private static final int UNREAD_SAVE_DELAY = 30;
+	private static ScheduledExecutorService unreadSaver = null;
+	private static boolean unreadSaveScheduled = false;
 	
 	public static void alert(Context context, String message) {
 		Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
@@ -127,12 +153,326 @@ public class Utils {
 		editor.commit();
 	}
 	
+	// Forgets the account straight away, then deletes everything stored for it in the background,
+	// once the open rooms have stopped adding to it.
 	public static void logoutCampfire(Context context) {
 		SharedPreferences prefs = context.getSharedPreferences("campfire", 0);
 		Editor editor = prefs.edit();
 	
 		editor.putString("user_id", null);		
+		editor.putString("watched_rooms", null);
 		editor.commit();
+		RoomWatcher.update(context);
+		RoomSession.stopAll();
+		
+		UserCache.shared().clear();
+		UnreadCounts.shared().clear();
+		new ClearAccountTask(context).execute();
+	}
+	
+	// holds on to the application context and not the activity, since it may outlive it
+	private static class ClearAccountTask extends AsyncTask<Void,Void,Void> {
+		private Context context;
+		
+		public ClearAccountTask(Context context) {
+			super();
+			this.context = context.getApplicationContext();
+		}
+		
+		@Override
+		protected Void doInBackground(Void... nothing) {
+			Outbox.shared().clear();
+			File[] journals = outboxDirectory(context).listFiles();
+			if (journals != null) {
+				for (int i=0; i<journals.length; i++)
+					journals[i].delete();
+			}
+			userCacheFile(context).delete();
+			unreadCountsFile(context).delete();
+			roomListFile(context).delete();
+			
+			// stored by room id alone, which another account's rooms could share
+			try {
+				SQLiteMessageStore.get(context).clearAll();
+			} catch (CampfireException e) {
+				// nothing more to be done for it
+			}
+			TranscriptArchive.closeAll();
+			deleteAll(transcriptsDirectory(context));
+			SearchIndex.closeAll();
+			deleteAll(searchDirectory(context));
+			TranscriptCache.closeAll();
+			deleteAll(daysDirectory(context));
+			deleteAll(snapshotsDirectory(context));
+			return null;
+		}
+	}
+	
+	// The process-wide user directory. The first call loads the snapshot from the last run,
+	// so this does disk I/O and should only be called from a background thread.
+	public static UserCache userCache(Context context, Campfire campfire) {
+		UserCache cache = UserCache.shared();
+		synchronized (cache) {
+			// reloaded if it was emptied to save memory, anything still in memory wins over the snapshot
+			if (!userCacheLoaded || cache.size() == 0) {
+				userCacheLoaded = true;
+				try {
+					cache.load(userCacheFile(context), campfire);
+				} catch (IOException e) {
+					// an unreadable snapshot just means starting cold
+					userCacheFile(context).delete();
+				}
+			}
+		}
+		return cache;
+	}
+	
+	// also disk I/O, call from a background thread
+	public static void saveUserCache(Context context, Campfire campfire) {
+		UserCache cache = UserCache.shared();
+		if (cache.isDirty()) {
+			try {
+				cache.save(userCacheFile(context), campfire);
+			} catch (IOException e) {
+				// we'll try again next time something changes
+			}
+		}
+	}
+	
+	// The process-wide unread counts. Like the user cache, the first call loads the snapshot
+	// from the last run, so call it from a background thread.
+	public static UnreadCounts unreadCounts(Context context, Campfire campfire) {
+		UnreadCounts counts = UnreadCounts.shared();
+		synchronized (counts) {
+			if (!unreadCountsLoaded) {
+				unreadCountsLoaded = true;
+				try {
+					counts.load(unreadCountsFile(context), campfire);
+				} catch (IOException e) {
+					unreadCountsFile(context).delete();
+				}
+			}
+		}
+		return counts;
+	}
+	
+	// also disk I/O, call from a background thread
+	public static void saveUnreadCounts(Context context, Campfire campfire) {
+		UnreadCounts counts = UnreadCounts.shared();
+		synchronized (counts) {
+			if (counts.isDirty()) {
+				try {
+					counts.save(unreadCountsFile(context), campfire);
+				} catch (IOException e) {
+					// we'll try again next time something changes
+				}
+			}
+		}
+	}
+	
+	// Saves the unread counts a little while later, along with whatever else changes them in the meantime,
+	// so a busy room doesn't rewrite the file for every message that arrives. From any thread.
+	public static void saveUnreadCountsLater(Context context, final Campfire campfire) {
+		synchronized (Utils.class) {
+			if (unreadSaveScheduled)
+				return;
+			unreadSaveScheduled = true;
+			if (unreadSaver == null) {
+				unreadSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "campyre-unread");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+		
+		final Context appContext = context.getApplicationContext();
+		unreadSaver.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Utils.class) {
+					unreadSaveScheduled = false;
+				}
+				saveUnreadCounts(appContext, campfire);
+			}
+		}, UNREAD_SAVE_DELAY, TimeUnit.SECONDS);
+	}
+	
+	// The process-wide outbox. The first call reads what was left in its journals last time and
+	// starts sending it, so this does disk I/O and should only be called from a background thread.
+	public static Outbox outbox(Context context, Campfire campfire) {
+		Outbox outbox = Outbox.shared();
+		outbox.load(outboxDirectory(context), campfire);
+		boolean merge = getBooleanPreference(context, Settings.MERGE_BURSTS_KEY, Settings.MERGE_BURSTS_DEFAULT);
+		outbox.setMergeWindow(merge ? Outbox.MERGE_WINDOW : 0);
+		return outbox;
+	}
+	
+	// The room list as it was last loaded, or null if there isn't one. Disk I/O, call from a background thread.
+	public static ArrayList<Room> savedRooms(Context context, Campfire campfire) {
+		try {
+			return Room.loadAll(roomListFile(context), campfire);
+		} catch (IOException e) {
+			roomListFile(context).delete();
+			return null;
+		}
+	}
+	
+	// also disk I/O, call from a background thread
+	public static void saveRooms(Context context, Campfire campfire, ArrayList<Room> rooms) {
+		try {
+			Room.saveAll(roomListFile(context), campfire, rooms);
+		} catch (IOException e) {
+			// it'll be saved again on the next load
+		}
+	}
+	
+	public static File roomSnapshotFile(Context context, String roomId) {
+		File directory = snapshotsDirectory(context);
+		directory.mkdirs();
+		return new File(directory, roomId);
+	}
+	
+	// kept in the files directory rather than the cache, since it can't be rebuilt from a single request
+	public static TranscriptArchive transcriptArchive(Context context, String roomId) throws CampfireException {
+		return TranscriptArchive.open(new File(transcriptsDirectory(context), roomId));
+	}
+	
+	public static TranscriptCache transcriptCache(Context context, String roomId) {
+		return TranscriptCache.open(new File(daysDirectory(context), roomId));
+	}
+	
+	public static SearchIndex searchIndex(Context context, String roomId) throws CampfireException {
+		return SearchIndex.open(new File(searchDirectory(context), roomId));
+	}
+	
+	// Archives messages that follow on from the room's archive, and indexes them for search.
+	public static void archiveMessages(Context context, String roomId, List<Message> messages) throws CampfireException {
+		TranscriptArchive archive = transcriptArchive(context, roomId);
+		if (archive.append(messages) > 0)
+			searchIndex(context, roomId).update(archive);
+	}
+	
+	// Merges a day's transcript into the room's archive, filling in any gap it covers,
+	// and indexes it again from wherever that changed the archive.
+	public static void fillArchive(Context context, String roomId, List<Message> messages) throws CampfireException {
+		TranscriptArchive archive = transcriptArchive(context, roomId);
+		long from = archive.fill(messages);
+		if (from >= 0) {
+			SearchIndex index = searchIndex(context, roomId);
+			index.rewind(from);
+			index.update(archive);
+		}
+	}
+	
+	// remembers which rooms were opened most recently, most recent first
+	public static void addRecentRoom(Context context, String roomId) {
+		ArrayList<String> recent = getRecentRooms(context);
+		recent.remove(roomId);
+		recent.add(0, roomId);
+		while (recent.size() > MAX_RECENT_ROOMS)
+			recent.remove(recent.size() - 1);
+		
+		StringBuilder value = new StringBuilder();
+		for (int i=0; i<recent.size(); i++) {
+			if (i > 0)
+				value.append(",");
+			value.append(recent.get(i));
+		}
+		context.getSharedPreferences("campfire", 0).edit().putString("recent_rooms", value.toString()).commit();
+	}
+	
+	public static ArrayList<String> getRecentRooms(Context context) {
+		ArrayList<String> recent = new ArrayList<String>();
+		String value = context.getSharedPreferences("campfire", 0).getString("recent_rooms", null);
+		if (value != null && value.length() > 0)
+			recent.addAll(Arrays.asList(value.split(",")));
+		return recent;
+	}
+	
+	// the rooms the RoomWatcher notifies about mentions in
+	public static ArrayList<String> getWatchedRooms(Context context) {
+		ArrayList<String> watched = new ArrayList<String>();
+		String value = context.getSharedPreferences("campfire", 0).getString("watched_rooms", null);
+		if (value != null && value.length() > 0)
+			watched.addAll(Arrays.asList(value.split(",")));
+		return watched;
+	}
+	
+	public static void setWatched(Context context, String roomId, boolean watch) {
+		ArrayList<String> watched = getWatchedRooms(context);
+		watched.remove(roomId);
+		if (watch)
+			watched.add(roomId);
+		
+		StringBuilder value = new StringBuilder();
+		for (int i=0; i<watched.size(); i++) {
+			if (i > 0)
+				value.append(",");
+			value.append(watched.get(i));
+		}
+		context.getSharedPreferences("campfire", 0).edit().putString("watched_rooms", value.toString()).commit();
+		RoomWatcher.update(context);
+	}
+	
+	// the keywords to be notified about, besides the user's own name
+	public static ArrayList<String> getNotifyKeywords(Context context) {
+		ArrayList<String> keywords = new ArrayList<String>();
+		String value = getStringPreference(context, Settings.NOTIFY_KEYWORDS_KEY);
+		if (value != null) {
+			String[] all = value.split(",");
+			for (int i=0; i<all.length; i++) {
+				if (all[i].trim().length() > 0)
+					keywords.add(all[i].trim());
+			}
+		}
+		return keywords;
+	}
+	
+	private static File userCacheFile(Context context) {
+		return new File(context.getCacheDir(), "users");
+	}
+	
+	private static File outboxDirectory(Context context) {
+		return new File(context.getFilesDir(), "outbox");
+	}
+	
+	// kept in the files directory, since the counts can't be worked out again
+	private static File unreadCountsFile(Context context) {
+		return new File(context.getFilesDir(), "unread");
+	}
+	
+	private static File roomListFile(Context context) {
+		return new File(context.getCacheDir(), "rooms");
+	}
+	
+	private static File transcriptsDirectory(Context context) {
+		return new File(context.getFilesDir(), "transcripts");
+	}
+	
+	private static File searchDirectory(Context context) {
+		return new File(context.getFilesDir(), "search");
+	}
+	
+	private static File daysDirectory(Context context) {
+		return new File(context.getFilesDir(), "days");
+	}
+	
+	private static File snapshotsDirectory(Context context) {
+		return new File(context.getCacheDir(), "snapshots");
+	}
+	
+	// the file, or the directory and everything in it
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i=0; i<children.length; i++)
+				deleteAll(children[i]);
+		}
+		file.delete();
 	}
 	
 	public static String getStringPreference(Context context, String key) {
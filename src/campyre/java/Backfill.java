@@ -0,0 +1,74 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TreeMap;
+
+// Finds the messages a poll skipped over, when more arrived since the last one seen than a page holds.
+// Campfire can only page forwards from a message, so the gap is filled from the day transcripts instead,
+// working backwards a day (one request) at a time from the day of the first message that was returned.
+// Days are asked for by this device's calendar, but Campfire splits them in the account's time zone,
+// so the day asked for may end before that message: then the day after is fetched too. The gap is only
+// closed once the days fetched reach both the last message seen and the first one returned,
+// within MAX_DAYS in all.
+public class Backfill {
+	public static final int MAX_DAYS = 3;
+
+	// The messages after previousId and before next, oldest first. Returns null if the gap couldn't
+	// be closed within MAX_DAYS, or the ids can't be compared.
+	public static ArrayList<Message> between(Room room, String previousId, Message next) throws CampfireException {
+		long previous = TranscriptArchive.numericId(previousId);
+		long last = TranscriptArchive.numericId(next.id);
+		if (previous < 0 || last < 0 || next.timestamp == null)
+			return null;
+
+		// by id, since neighbouring days may overlap
+		TreeMap<Long,Message> missed = new TreeMap<Long,Message>();
+		boolean reachedStart = false, reachedEnd = false;
+		Date first = TranscriptCache.startOf(next.timestamp);
+		Date earliest = first, latest = first;
+
+		for (int i=0; i<MAX_DAYS; i++) {
+			Date day;
+			if (i == 0)
+				day = first;
+			else if (!reachedEnd)
+				day = latest = TranscriptCache.addDays(latest, 1);
+			else
+				day = earliest = TranscriptCache.addDays(earliest, -1);
+
+			ArrayList<Message> transcript = Message.allOn(room, day);
+			for (int j=0; j<transcript.size(); j++) {
+				Message message = transcript.get(j);
+				long id = TranscriptArchive.numericId(message.id);
+				if (id < 0)
+					continue;
+				else if (id <= previous)
+					reachedStart = true;
+				else if (id >= last)
+					reachedEnd = true;
+				else
+					missed.put(id, message);
+			}
+
+			if (reachedStart && reachedEnd)
+				return new ArrayList<Message>(missed.values());
+		}
+
+		return null;
+	}
+
+	// The gap before the page, followed by the page itself: everything after previousId, oldest first.
+	// Returns null if the gap couldn't be closed.
+	public static ArrayList<Message> run(Room room, String previousId, ArrayList<Message> page) throws CampfireException {
+		if (page.isEmpty())
+			return null;
+
+		ArrayList<Message> gap = between(room, previousId, page.get(0));
+		if (gap == null)
+			return null;
+
+		gap.addAll(page);
+		return gap;
+	}
+}
@@ -0,0 +1,64 @@
+package campyre.java;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+// Helpers for the hand-written binary encodings of the model classes.
+// Used by their Externalizable implementations, and by anything that writes them to disk.
+public class Binary {
+
+	// length-prefixed UTF-8, with a length of 0 meaning null
+	// (writeUTF is avoided since it can't handle strings over 64K, like large pastes)
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length == 0)
+			return null;
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	public static void writeDate(DataOutput out, Date value) throws IOException {
+		out.writeLong(value == null ? Long.MIN_VALUE : value.getTime());
+	}
+
+	public static Date readDate(DataInput in) throws IOException {
+		long time = in.readLong();
+		return time == Long.MIN_VALUE ? null : new Date(time);
+	}
+
+	// variable-length unsigned int, 7 bits per byte - small numbers (lengths, deltas) take 1 byte
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift > 28)
+				throw new IOException("Malformed variable-length int.");
+			b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
@@ -0,0 +1,32 @@
+package campyre.java;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Lets the binary decoders read straight out of a (usually memory-mapped) buffer.
+class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (!buffer.hasRemaining())
+			return -1;
+		length = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, length);
+		return length;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -1,13 +1,19 @@
 package campyre.java;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 
-public class Campfire implements Serializable {
+public class Campfire implements Externalizable {
 	private static final long serialVersionUID = 1L;
 
 	// Change this to use your own user agent
@@ -17,6 +23,9 @@ public class Campfire implements Serializable {
 	public String username, password;
 	public String user_id = null;
 
+	// only for Externalizable, use one of the other constructors
+	public Campfire() {}
+
 	public Campfire(String subdomain) {
 		this.subdomain = subdomain;
 	}
@@ -27,6 +36,38 @@ public class Campfire implements Serializable {
 		this.user_id = user_id;
 	}
 
+	public void write(DataOutput out) throws IOException {
+		Binary.writeString(out, subdomain);
+		Binary.writeString(out, token);
+		Binary.writeString(out, username);
+		Binary.writeString(out, password);
+		Binary.writeString(out, user_id);
+	}
+
+	public static Campfire read(DataInput in) throws IOException {
+		Campfire campfire = new Campfire();
+		campfire.readFields(in);
+		return campfire;
+	}
+
+	private void readFields(DataInput in) throws IOException {
+		subdomain = Binary.readString(in);
+		token = Binary.readString(in);
+		username = Binary.readString(in);
+		password = Binary.readString(in);
+		user_id = Binary.readString(in);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFields(in);
+	}
+
 	public void login() throws CampfireException {
 		HttpResponse response = new CampfireRequest(this).get(mePath());
 		int statusCode = response.getStatusLine().getStatusCode();
@@ -83,4 +124,9 @@ public class Campfire implements Serializable {
 		return roomPath(room_id) + "/uploads";
 	}
 
+	// on the streaming host, not the subdomain
+	public static String streamPath(String room_id) {
+		return roomPath(room_id) + "/live";
+	}
+
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package campyre.java;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -33,14 +33,27 @@ import org.json.JSONObject;
 
 
 public class CampfireRequest {
+	// bytes read from an upload, and sent, at a time
+	private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+	
 	private String format = ".json";
 	
 	private Campfire campfire;
 	
+	// if set, requests share its kept-alive connection rather than each opening their own
+	private DefaultHttpClient client = null;
+	
 	public CampfireRequest(Campfire campfire) {
 		this.campfire = campfire;
 	}
 	
+	// For a run of requests in a row to the same Campfire (e.g. a burst of messages), which then
+	// only pay for connecting once. Each response must be read before the next request is made.
+	public CampfireRequest(Campfire campfire, DefaultHttpClient client) {
+		this.campfire = campfire;
+		this.client = client;
+	}
+	
 	public JSONObject getOne(String path, String key) throws CampfireException, JSONException {
 		return new JSONObject(responseBody(get(path))).getJSONObject(key);
 	}
@@ -96,7 +109,7 @@ public class CampfireRequest {
 		CredentialsProvider credsProvider = new BasicCredentialsProvider();
 		credsProvider.setCredentials(new AuthScope(domain(), 443), credentials);
 		
-		DefaultHttpClient client = new DefaultHttpClient();
+		DefaultHttpClient client = (this.client != null) ? this.client : new DefaultHttpClient();
 		client.setCredentialsProvider(credsProvider);
         
         try {
@@ -158,22 +171,46 @@ public class CampfireRequest {
 	}
 	
 	public void uploadFile(String path, InputStream stream, String filename, String mimeType) throws CampfireException {
+		uploadFile(path, stream, -1, filename, mimeType);
+	}
+	
+	// Streams the file up as it's read, a buffer at a time, rather than letting HttpURLConnection hold
+	// the whole body in memory to work out its length: with a fixed length when it's known
+	// (length is -1 if it isn't), or chunked otherwise. Closes the stream.
+	public void uploadFile(String path, InputStream stream, long length, String filename, String mimeType) throws CampfireException {
         String lineEnd = "\r\n";
         String twoHyphens = "--";
         String boundary = "---------------------------XXX";
         
+        HttpURLConnection conn = null;
         try {
+        	// header for the file itself
+        	// OH MY GOD the space between the semicolon and "filename=" is ABSOLUTELY NECESSARY
+        	byte[] header = (twoHyphens + boundary + lineEnd
+        		+ "Content-Disposition: form-data; name=\"upload\"; filename=\"" + filename + "\"" + lineEnd
+        		+ "Content-Transfer-Encoding: binary" + lineEnd
+        		+ "Content-Type: " + mimeType + lineEnd
+        		+ lineEnd).getBytes("UTF-8");
+        	// file closer, and end of the multipart request
+        	byte[] footer = (lineEnd + twoHyphens + boundary + twoHyphens + lineEnd).getBytes("UTF-8");
+        	
         	// Unlike other parts of the API, this must be posted to the .xml endpoint, not the .json
         	// This seems to be because .json endpoints require a Content-Type of application/json,
         	// and with a multipart post it must be multipart/form-data.
         	// I consider this a bug, since it is inconsistent with the rest of the API, and undocumented.
             URL connectURL = new URL(url(path, ".xml"));
             
-            HttpURLConnection conn = (HttpURLConnection) connectURL.openConnection();
+            conn = (HttpURLConnection) connectURL.openConnection();
             conn.setDoInput(true);
             conn.setDoOutput(true);
             conn.setUseCaches(false);
             conn.setRequestMethod("POST");
+            
+            long total = header.length + length + footer.length;
+            if (length >= 0 && total <= Integer.MAX_VALUE)
+            	conn.setFixedLengthStreamingMode((int) total);
+            else
+            	conn.setChunkedStreamingMode(UPLOAD_BUFFER_SIZE);
 
             // authentication
             String token = campfire.token + ":" + "X";
@@ -183,39 +220,18 @@ public class CampfireRequest {
             conn.setRequestProperty("User-Agent", Campfire.USER_AGENT);
             conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
             
-            DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
-            
-            // header for the file itself
-            dos.writeBytes(twoHyphens + boundary + lineEnd);
-            // OH MY GOD the space between the semicolon and "filename=" is ABSOLUTELY NECESSARY
-            dos.writeBytes("Content-Disposition: form-data; name=\"upload\"; filename=\"" + filename + "\"" + lineEnd);
-            dos.writeBytes("Content-Transfer-Encoding: binary" + lineEnd);
-            dos.writeBytes("Content-Type: " + mimeType + lineEnd);
-            dos.writeBytes(lineEnd);
+            OutputStream out = conn.getOutputStream();
+            out.write(header);
 
-            // insert file
-            int bytesAvailable = stream.available();
-            int maxBufferSize = 1024;
-            int bufferSize = Math.min(bytesAvailable, maxBufferSize);
-            byte[] buffer = new byte[bufferSize];
-            int bytesRead = stream.read(buffer, 0, bufferSize);
-            while (bytesRead > 0) {
-                dos.write(buffer, 0, bufferSize);
-                bytesAvailable = stream.available();
-                bufferSize = Math.min(bytesAvailable, maxBufferSize);
-                bytesRead = stream.read(buffer, 0, bufferSize);
-            }
+            // insert file, reading until it runs out rather than trusting available()
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = stream.read(buffer)) != -1)
+            	out.write(buffer, 0, bytesRead);
             
-            // file closer
-            dos.writeBytes(lineEnd);
-            
-            // end multipart request            
-            dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-
-            // close streams
-            stream.close();
-            dos.flush();
-            dos.close();
+            out.write(footer);
+            out.flush();
+            out.close();
 
             int responseCode = conn.getResponseCode();
             
@@ -223,7 +239,15 @@ public class CampfireRequest {
             	throw new CampfireException("Could not upload file to Campfire.");
         } catch (IOException e) {
         	throw new CampfireException("Network error while uploading to Campfire, file not uploaded.");
-        } 
+        } finally {
+        	try {
+        		stream.close();
+        	} catch (IOException e) {
+        		// nothing to be done
+        	}
+        	if (conn != null)
+        		conn.disconnect();
+        }
 		
 	}
 }
\ No newline at end of file
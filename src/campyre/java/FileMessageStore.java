@@ -0,0 +1,114 @@
+package campyre.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// MessageStore for plain Java, keeping one small file per room under a directory.
+// Each room's window is only as big as the number of messages shown, so it's rewritten whole.
+public class FileMessageStore implements MessageStore {
+	private static final int FORMAT_VERSION = 1;
+
+	private File directory;
+
+	public FileMessageStore(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	@Override
+	public synchronized ArrayList<Message> recent(String roomId, int max) throws CampfireException {
+		ArrayList<Message> messages = read(roomId);
+		if (messages.size() > max)
+			return new ArrayList<Message>(messages.subList(messages.size() - max, messages.size()));
+		return messages;
+	}
+
+	@Override
+	public synchronized void add(String roomId, List<Message> messages, int max) throws CampfireException {
+		LinkedHashMap<String,Message> byId = new LinkedHashMap<String,Message>();
+		ArrayList<Message> existing = read(roomId);
+		for (int i=0; i<existing.size(); i++)
+			byId.put(existing.get(i).id, existing.get(i));
+		for (int i=0; i<messages.size(); i++) {
+			Message message = messages.get(i);
+			byId.remove(message.id); // so a replaced message moves to its new position
+			byId.put(message.id, message);
+		}
+
+		ArrayList<Message> all = new ArrayList<Message>(byId.values());
+		if (all.size() > max)
+			all = new ArrayList<Message>(all.subList(all.size() - max, all.size()));
+		write(roomId, all);
+	}
+
+	@Override
+	public synchronized void clear(String roomId) {
+		fileFor(roomId).delete();
+	}
+
+	@Override
+	public synchronized void clearAll() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (int i=0; i<files.length; i++)
+			files[i].delete();
+	}
+
+	private ArrayList<Message> read(String roomId) throws CampfireException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		File file = fileFor(roomId);
+		if (!file.exists())
+			return messages;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FORMAT_VERSION)
+					return messages;
+				int length = Binary.readVarInt(in);
+				for (int i=0; i<length; i++)
+					messages.add(Message.read(in));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't read stored messages.");
+		}
+		return messages;
+	}
+
+	private void write(String roomId, List<Message> messages) throws CampfireException {
+		File file = fileFor(roomId);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				Binary.writeVarInt(out, messages.size());
+				for (int i=0; i<messages.size(); i++)
+					messages.get(i).write(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't store messages.");
+		}
+
+		if (!temp.renameTo(file))
+			throw new CampfireException("Couldn't store messages.");
+	}
+
+	private File fileFor(String roomId) {
+		return new File(directory, roomId + ".messages");
+	}
+}
@@ -0,0 +1,148 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+// Finds any of a set of keywords in a piece of text in a single pass (Aho-Corasick), so the cost
+// of checking a message depends on the length of its body, not on how many keywords there are.
+//
+// Matching ignores case, and only whole words count: "rob" is found in "hi rob!" but not in "problem".
+// Built once, then safe to use from any number of threads.
+public class KeywordMatcher {
+	private Node root = new Node();
+	private int size = 0;
+
+	public KeywordMatcher(Collection<String> keywords) {
+		Iterator<String> all = keywords.iterator();
+		while (all.hasNext())
+			add(all.next());
+		link();
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the first keyword found in the text (as it was given), or null if there aren't any
+	public String find(String text) {
+		ArrayList<String> found = find(text, true);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	// every keyword found in the text, each once, in the order they end in the text
+	public ArrayList<String> findAll(String text) {
+		return find(text, false);
+	}
+
+	private ArrayList<String> find(String text, boolean first) {
+		ArrayList<String> found = new ArrayList<String>();
+		if (text == null || size == 0)
+			return found;
+
+		Node node = root;
+		int length = text.length();
+		for (int i=0; i<length; i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+
+			while (node != root && !node.next.containsKey(c))
+				node = node.fail;
+			Node next = node.next.get(c);
+			node = (next == null) ? root : next;
+
+			// every keyword ending here: this node's own, then the shorter ones along the output links
+			Node match = (node.keyword != null) ? node : node.output;
+			while (match != null) {
+				int start = i - match.depth + 1;
+				if (wholeWord(text, start, i) && !found.contains(match.keyword)) {
+					found.add(match.keyword);
+					if (first)
+						return found;
+				}
+				match = match.output;
+			}
+		}
+		return found;
+	}
+
+	private void add(String keyword) {
+		if (keyword == null)
+			return;
+		keyword = keyword.trim();
+		if (keyword.length() == 0)
+			return;
+
+		Node node = root;
+		for (int i=0; i<keyword.length(); i++) {
+			char c = Character.toLowerCase(keyword.charAt(i));
+			Node next = node.next.get(c);
+			if (next == null) {
+				next = new Node();
+				next.depth = node.depth + 1;
+				node.next.put(c, next);
+			}
+			node = next;
+		}
+
+		if (node.keyword == null) {
+			node.keyword = keyword;
+			size += 1;
+		}
+	}
+
+	// Fills in the failure links (the longest proper suffix that's also in the trie) and the output
+	// links (the longest such suffix that's a whole keyword), breadth first, so shorter ones are done first.
+	private void link() {
+		LinkedList<Node> queue = new LinkedList<Node>();
+		Iterator<Node> children = root.next.values().iterator();
+		while (children.hasNext()) {
+			Node child = children.next();
+			child.fail = root;
+			queue.add(child);
+		}
+
+		while (!queue.isEmpty()) {
+			Node node = queue.removeFirst();
+			Iterator<Character> chars = node.next.keySet().iterator();
+			while (chars.hasNext()) {
+				Character c = chars.next();
+				Node child = node.next.get(c);
+
+				Node fail = node.fail;
+				while (fail != root && !fail.next.containsKey(c))
+					fail = fail.fail;
+				Node target = fail.next.get(c);
+				child.fail = (target == null || target == child) ? root : target;
+				child.output = (child.fail.keyword != null) ? child.fail : child.fail.output;
+
+				queue.add(child);
+			}
+		}
+	}
+
+	private static boolean wholeWord(String text, int start, int end) {
+		if (start > 0 && wordCharacter(text.charAt(start - 1)))
+			return false;
+		if (end + 1 < text.length() && wordCharacter(text.charAt(end + 1)))
+			return false;
+		return true;
+	}
+
+	private static boolean wordCharacter(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	private static class Node {
+		HashMap<Character,Node> next = new HashMap<Character,Node>();
+		Node fail = null;
+		Node output = null;
+		String keyword = null; // set if a keyword ends here
+		int depth = 0;
+	}
+}
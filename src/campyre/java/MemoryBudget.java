@@ -0,0 +1,133 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Central registry of the process's in-memory caches, so that they can all be shrunk together
+// when the system is short of memory, and their sizes inspected for diagnostics.
+//
+// Each cache registers with a priority. At a given trim level, only caches whose priority is
+// no higher than the level are trimmed, lowest priority first, and each decides for itself how
+// much to let go of at that level.
+public class MemoryBudget {
+	// how hard to trim, from least to most
+	public static final int TRIM_LIGHT = 1; // e.g. the UI is no longer visible
+	public static final int TRIM_MODERATE = 2; // memory is running low, or the process is in the background
+	public static final int TRIM_COMPLETE = 3; // the process is next in line to be killed
+
+	public static final int PRIORITY_LOW = 1; // cheap to rebuild, e.g. decoded images or anything also on disk
+	public static final int PRIORITY_NORMAL = 2;
+	public static final int PRIORITY_HIGH = 3; // expensive to rebuild, or what's on screen
+
+	// rough per-object overheads, for the estimates
+	public static final int OBJECT_OVERHEAD = 16;
+	public static final int ENTRY_OVERHEAD = 32;
+
+	private static MemoryBudget shared = null;
+
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	public static synchronized MemoryBudget shared() {
+		if (shared == null)
+			shared = new MemoryBudget();
+		return shared;
+	}
+
+	public synchronized void register(String name, Trimmable cache, int priority) {
+		for (int i=0; i<entries.size(); i++) {
+			if (entries.get(i).cache == cache)
+				return;
+		}
+
+		// kept sorted by priority, so trimming goes from the lowest up
+		int position = entries.size();
+		while (position > 0 && entries.get(position - 1).priority > priority)
+			position -= 1;
+		entries.add(position, new Entry(name, cache, priority));
+	}
+
+	public synchronized void unregister(Trimmable cache) {
+		for (int i=0; i<entries.size(); i++) {
+			if (entries.get(i).cache == cache) {
+				entries.remove(i);
+				return;
+			}
+		}
+	}
+
+	// Trims every cache the level reaches, returning roughly how many bytes were freed.
+	// The caches are called without holding the budget's lock, as they have locks of their own.
+	public long trim(int level) {
+		ArrayList<Entry> reached = new ArrayList<Entry>();
+		synchronized (this) {
+			for (int i=0; i<entries.size(); i++) {
+				Entry entry = entries.get(i);
+				if (entry.priority <= level)
+					reached.add(entry);
+			}
+		}
+
+		long freed = 0;
+		for (int i=0; i<reached.size(); i++) {
+			Trimmable cache = reached.get(i).cache;
+			long before = cache.memoryUsage();
+			cache.trim(level);
+			freed += Math.max(0, before - cache.memoryUsage());
+		}
+		return freed;
+	}
+
+	// estimated bytes held by each cache, by name (caches registered under the same name are added together)
+	public LinkedHashMap<String,Long> usage() {
+		List<Entry> all;
+		synchronized (this) {
+			all = new ArrayList<Entry>(entries);
+		}
+
+		LinkedHashMap<String,Long> usage = new LinkedHashMap<String,Long>();
+		for (int i=0; i<all.size(); i++) {
+			Entry entry = all.get(i);
+			Long current = usage.get(entry.name);
+			usage.put(entry.name, (current == null ? 0 : current) + entry.cache.memoryUsage());
+		}
+		return usage;
+	}
+
+	public long totalUsage() {
+		long total = 0;
+		Iterator<Long> sizes = usage().values().iterator();
+		while (sizes.hasNext())
+			total += sizes.next();
+		return total;
+	}
+
+	public static long estimate(String value) {
+		return value == null ? 0 : OBJECT_OVERHEAD + 2 * value.length();
+	}
+
+	// the message, its strings and its timestamp
+	public static long estimate(Message message) {
+		return OBJECT_OVERHEAD + estimate(message.id) + estimate(message.user_id) + estimate(message.body) + estimate(message.person) + OBJECT_OVERHEAD;
+	}
+
+	public static long estimate(List<Message> messages) {
+		long total = 0;
+		for (int i=0; i<messages.size(); i++)
+			total += ENTRY_OVERHEAD + estimate(messages.get(i));
+		return total;
+	}
+
+	private static class Entry {
+		String name;
+		Trimmable cache;
+		int priority;
+
+		Entry(String name, Trimmable cache, int priority) {
+			this.name = name;
+			this.cache = cache;
+			this.priority = priority;
+		}
+	}
+}
@@ -1,6 +1,13 @@
 package campyre.java;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.regex.Matcher;
@@ -12,7 +19,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class Message {
+public class Message implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
 	// Campfire message types
 	public static enum Type {
 	  // Campfire message types
@@ -51,11 +60,14 @@ public class Message {
 	public String id, user_id, body;
 	public Date timestamp;
 
-	private String[] inFormat = new String[] {"yy/MM/dd HH:mm:ss Z"};
+	private static final String[] inFormat = new String[] {"yy/MM/dd HH:mm:ss Z"};
 
 	// Here for the Android client, the display name to put on the Message object itself
 	public String person;
 
+	// only for Externalizable
+	public Message() {}
+
 	// for making artificial messages (really just intended to serve the Android client)
 	// only make them if you know what you're doing (as they'll be missing fields!)
 	public Message(String id, Type type, String body) {
@@ -76,45 +88,82 @@ public class Message {
 		this.person = null;
 	}
 
-	public static ArrayList<Message> allToday(Room room) throws CampfireException {
-		ArrayList<Message> messages = new ArrayList<Message>();
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(type.ordinal());
+		Binary.writeString(out, id);
+		Binary.writeString(out, user_id);
+		Binary.writeString(out, body);
+		Binary.writeDate(out, timestamp);
+		Binary.writeString(out, person);
+	}
 
-		try {
-			JSONArray items = new CampfireRequest(room.campfire).getList(todayPath(room.id), "messages");
-			int length = items.length();
+	public static Message read(DataInput in) throws IOException {
+		Message message = new Message();
+		message.readFields(in);
+		return message;
+	}
 
-			for (int i=0; i<length; i++) {
-				Message message = new Message(items.getJSONObject(i));
-				if (message.type != Type.UNSUPPORTED)
-					messages.add(message);
-			}
+	private void readFields(DataInput in) throws IOException {
+		int ordinal = in.readByte();
+		Type[] types = Type.values();
+		type = (ordinal >= 0 && ordinal < types.length) ? types[ordinal] : Type.UNSUPPORTED;
+		id = Binary.readString(in);
+		user_id = Binary.readString(in);
+		body = Binary.readString(in);
+		timestamp = Binary.readDate(in);
+		person = Binary.readString(in);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFields(in);
+	}
+
+	public static ArrayList<Message> allToday(Room room) throws CampfireException {
+		return transcript(room, todayPath(room.id));
+	}
 
+	// the full transcript of the given day (in this device's time zone)
+	public static ArrayList<Message> allOn(Room room, Date day) throws CampfireException {
+		return transcript(room, transcriptPath(room.id, day));
+	}
+
+	private static ArrayList<Message> transcript(Room room, String path) throws CampfireException {
+		try {
+			return fromList(new CampfireRequest(room.campfire).getList(path, "messages"));
 		} catch (JSONException e) {
 			throw new CampfireException(e, "Could not load messages from their JSON.");
-		} catch (DateParseException e) {
-			throw new CampfireException(e, "Could not parse date from a message's JSON.");
 		}
-
-		return messages;
 	}
 
 	public static ArrayList<Message> recent(Room room, int max, String lastSeen) throws CampfireException {
-		ArrayList<Message> messages = new ArrayList<Message>();
-
 		try {
 			HashMap<String,String> parameters = new HashMap<String,String>();
 			parameters.put("limit", String.valueOf(max));
 			if (lastSeen != null)
 				parameters.put("since_message_id", lastSeen);
 
-			JSONArray items = new CampfireRequest(room.campfire).getList(recentPath(room.id), parameters, "messages");
+			return fromList(new CampfireRequest(room.campfire).getList(recentPath(room.id), parameters, "messages"));
+		} catch (JSONException e) {
+			throw new CampfireException(e, "Could not load messages from their JSON.");
+		}
+	}
+
+	private static ArrayList<Message> fromList(JSONArray items) throws CampfireException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+
+		try {
 			int length = items.length();
 			for (int i=0; i<length; i++) {
 				Message message = new Message(items.getJSONObject(i));
 				if (message.type != Type.UNSUPPORTED)
 					messages.add(message);
 			}
-
 		} catch (JSONException e) {
 			throw new CampfireException(e, "Could not load messages from their JSON.");
 		} catch (DateParseException e) {
@@ -132,6 +181,12 @@ public class Message {
 		return "/room/" + room_id + "/transcript";
 	}
 
+	public static String transcriptPath(String room_id, Date day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(day);
+		return todayPath(room_id) + "/" + calendar.get(Calendar.YEAR) + "/" + (calendar.get(Calendar.MONTH) + 1) + "/" + calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
 	private String denull(String maybeNull) {
 		if (maybeNull.equals("null"))
 			return null;
@@ -0,0 +1,20 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Durable local copy of each room's recent messages, keyed by room and message id,
+// so a room can be drawn from disk immediately and only newer messages fetched.
+public interface MessageStore {
+	// the newest (up to) max messages stored for the room, oldest first
+	ArrayList<Message> recent(String roomId, int max) throws CampfireException;
+
+	// Adds messages to the room, replacing any already stored with the same id,
+	// then drops the oldest ones so that at most max are kept.
+	void add(String roomId, List<Message> messages, int max) throws CampfireException;
+
+	void clear(String roomId) throws CampfireException;
+
+	// every room's messages, e.g. on logging out
+	void clearAll() throws CampfireException;
+}
@@ -0,0 +1,87 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// The messages shown in a room, in the order Campfire gave them ids, along with a set of their ids,
+// so a message that's already there (e.g. one we spoke, coming back again from /recent) is
+// recognized in constant time and dropped, instead of being shown twice.
+//
+// New messages nearly always belong at the end, so they're placed by looking back from there.
+// Not thread safe; it belongs to whichever thread shows it.
+public class MessageWindow {
+	private ArrayList<Message> messages = new ArrayList<Message>();
+	private HashSet<String> ids = new HashSet<String>();
+
+	public MessageWindow() {}
+
+	public MessageWindow(List<Message> messages) {
+		addAll(messages);
+	}
+
+	// Returns the position it went in at, or -1 if it was already there.
+	public int add(Message message) {
+		if (!ids.add(message.id))
+			return -1;
+
+		long id = TranscriptArchive.numericId(message.id);
+		int position = messages.size();
+		while (position > 0 && TranscriptArchive.numericId(messages.get(position - 1).id) > id)
+			position -= 1;
+		messages.add(position, message);
+		return position;
+	}
+
+	// Returns how many of them weren't already there.
+	public int addAll(List<Message> messages) {
+		int added = 0;
+		for (int i=0; i<messages.size(); i++) {
+			if (add(messages.get(i)) >= 0)
+				added += 1;
+		}
+		return added;
+	}
+
+	public boolean contains(String id) {
+		return ids.contains(id);
+	}
+
+	// Returns its position, or -1 if it wasn't there.
+	public int indexOf(String id) {
+		if (!ids.contains(id))
+			return -1;
+		for (int i=messages.size()-1; i>=0; i--) {
+			if (messages.get(i).id.equals(id))
+				return i;
+		}
+		return -1;
+	}
+
+	// drops the oldest messages, keeping no more than max
+	public void trimTo(int max) {
+		if (messages.size() <= max)
+			return;
+		List<Message> dropped = messages.subList(0, messages.size() - max);
+		for (int i=0; i<dropped.size(); i++)
+			ids.remove(dropped.get(i).id);
+		dropped.clear();
+	}
+
+	public Message get(int position) {
+		return messages.get(position);
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	// a copy, in order
+	public ArrayList<Message> list() {
+		return new ArrayList<Message>(messages);
+	}
+}
@@ -0,0 +1,381 @@
+package campyre.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+
+// Messages waiting to be spoken. Each one is journaled to disk before it's sent, and only taken
+// out of the journal once Campfire has it, so neither a dropped connection nor the process
+// being killed mid-send loses it: whatever's left in the journals is sent once they're loaded again.
+//
+// Each room's messages go out one at a time, in the order they were queued. Sending them all at once
+// would let Campfire take them in whatever order they arrive, so instead a burst of them is sent back to back
+// over one kept-alive connection, after at most one join, which leaves a round trip per message.
+// Optionally, lines queued within the merge window of each other go out together as one PasteMessage.
+//
+// A failed send is tried again after a growing delay (RETRY_DELAYS), holding up the room's later
+// messages so they can't overtake it, and is given up on after MAX_ATTEMPTS. There's no telling whether
+// a send that failed mid-reply made it, so a message can, rarely, be spoken twice.
+//
+// Results go to the room's Listener, if there is one, on a sending thread.
+public class Outbox {
+	public static final int MAX_ATTEMPTS = 8;
+	public static final int MAX_CONCURRENT = 2;
+
+	// seconds to wait before each successive attempt to send again
+	private static final int[] RETRY_DELAYS = new int[] {2, 5, 15, 30, 60};
+
+	// in milliseconds, how close together lines have to be queued to be merged, when merging is on
+	public static final int MERGE_WINDOW = 50;
+
+	private static final int JOURNAL_VERSION = 2;
+
+	public interface Listener {
+		// The message as Campfire has it, which replaces the ones in transit: just the one,
+		// unless they were merged into a single paste.
+		void onSent(String roomId, ArrayList<String> transitIds, Message message);
+
+		// retrying is false if they've been given up on, and dropped
+		void onSendFailed(String roomId, ArrayList<String> transitIds, CampfireException exception, boolean retrying);
+	}
+
+	private static Outbox shared = null;
+	private static long lastTransitId = 0;
+
+	private File directory = null;
+	private HashMap<String,Queue> queues = new HashMap<String,Queue>();
+	private HashMap<String,Listener> listeners = new HashMap<String,Listener>();
+	private ScheduledExecutorService senders;
+	private int mergeWindow = 0;
+
+	public Outbox() {
+		senders = Executors.newScheduledThreadPool(MAX_CONCURRENT, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				count += 1;
+				Thread thread = new Thread(runnable, "campyre-outbox-" + count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static synchronized Outbox shared() {
+		if (shared == null)
+			shared = new Outbox();
+		return shared;
+	}
+
+	// An id for a new message in transit, never the same as one from an earlier run still in a journal.
+	public static synchronized String transitId() {
+		lastTransitId = Math.max(lastTransitId + 1, System.currentTimeMillis());
+		return "transit-" + lastTransitId;
+	}
+
+	// Reads the journals left in the directory (only the first time it's called) and starts sending what's in them.
+	// Journals from another Campfire are ignored. Disk I/O, call from a background thread.
+	public synchronized void load(File directory, Campfire campfire) {
+		if (this.directory != null)
+			return;
+		this.directory = directory;
+		directory.mkdirs();
+
+		File[] journals = directory.listFiles();
+		if (journals == null)
+			return;
+		for (int i=0; i<journals.length; i++) {
+			File journal = journals[i];
+			if (journal.getName().endsWith(".tmp"))
+				continue;
+			try {
+				Queue queue = read(journal, campfire);
+				if (queue == null) {
+					// another version's, or another account's, which can't be sent
+					journal.delete();
+				} else if (!queue.entries.isEmpty()) {
+					queues.put(queue.room.id, queue);
+					kick(queue, 0);
+				}
+			} catch (IOException e) {
+				// nothing to be done for it
+				journal.delete();
+			}
+		}
+	}
+
+	// in milliseconds, 0 to send every line on its own
+	public synchronized void setMergeWindow(int mergeWindow) {
+		this.mergeWindow = mergeWindow;
+	}
+
+	// Journals the message and queues it behind anything else waiting for the room.
+	public void queue(Room room, Message transitMessage) throws CampfireException {
+		if (transitMessage.timestamp == null)
+			transitMessage.timestamp = new Date();
+
+		synchronized (this) {
+			Queue queue = queues.get(room.id);
+			if (queue == null) {
+				queue = new Queue(room);
+				queues.put(room.id, queue);
+			}
+			queue.entries.add(transitMessage);
+			try {
+				write(queue);
+			} catch (IOException e) {
+				queue.entries.remove(transitMessage);
+				throw new CampfireException(e, "Couldn't save your message to send it.");
+			}
+			kick(queue, 0);
+		}
+	}
+
+	// the messages still waiting to go out to the room, in order
+	public synchronized ArrayList<Message> pending(String roomId) {
+		Queue queue = queues.get(roomId);
+		return queue == null ? new ArrayList<Message>() : new ArrayList<Message>(queue.entries);
+	}
+
+	public synchronized boolean isPending(String roomId, String transitId) {
+		Queue queue = queues.get(roomId);
+		if (queue == null)
+			return false;
+		for (int i=0; i<queue.entries.size(); i++) {
+			if (queue.entries.get(i).id.equals(transitId))
+				return true;
+		}
+		return false;
+	}
+
+	public synchronized void setListener(String roomId, Listener listener) {
+		listeners.put(roomId, listener);
+	}
+
+	// unless another has taken over since
+	public synchronized void removeListener(String roomId, Listener listener) {
+		if (listeners.get(roomId) == listener)
+			listeners.remove(roomId);
+	}
+
+	// Drops everything waiting to go out, e.g. on logging out. Sends already under way still finish.
+	public synchronized void clear() {
+		Iterator<Queue> all = queues.values().iterator();
+		while (all.hasNext()) {
+			Queue queue = all.next();
+			queue.entries.clear();
+			journal(queue).delete();
+		}
+		queues.clear();
+	}
+
+	// must hold the lock
+	private void kick(final Queue queue, int delay) {
+		if (queue.sending || queue.entries.isEmpty())
+			return;
+		queue.sending = true;
+		senders.schedule(new Runnable() {
+			@Override
+			public void run() {
+				send(queue);
+			}
+		}, delay, TimeUnit.SECONDS);
+	}
+
+	// Sends the room's messages until there are none left, or one fails.
+	private void send(Queue queue) {
+		Room room = queue.room;
+		DefaultHttpClient client = new DefaultHttpClient();
+		boolean joined = false;
+
+		try {
+			while (true) {
+				ArrayList<Message> batch;
+				synchronized (this) {
+					batch = nextBatch(queue);
+					if (batch.isEmpty()) {
+						queue.sending = false;
+						if (queues.get(room.id) == queue)
+							queues.remove(room.id);
+						return;
+					}
+				}
+
+				Message sent = null;
+				CampfireException exception = null;
+				try {
+					// in case we've been idle-kicked out since we last spoke, once for the whole burst
+					if (!joined) {
+						Presence.shared().joinIfNeeded(room);
+						joined = true;
+					}
+					sent = room.speak(body(batch), client);
+					Presence.shared().proven(room.id);
+				} catch (CampfireException e) {
+					exception = e;
+				}
+
+				Listener listener;
+				boolean retrying = false;
+				synchronized (this) {
+					if (sent == null)
+						queue.failures += 1;
+
+					if (sent != null || queue.failures >= MAX_ATTEMPTS) {
+						queue.failures = 0;
+						queue.entries.removeAll(batch);
+						try {
+							write(queue);
+						} catch (IOException e) {
+							// they're still gone from memory, and sent again only if the process dies before the journal is written
+						}
+					} else
+						retrying = true;
+
+					// a failure ends the burst, the rest wait for the retry
+					if (sent == null) {
+						queue.sending = false;
+						if (queues.get(room.id) == queue) {
+							if (queue.entries.isEmpty())
+								queues.remove(room.id);
+							else
+								kick(queue, retrying ? RETRY_DELAYS[Math.min(queue.failures, RETRY_DELAYS.length) - 1] : 0);
+						}
+					}
+					listener = listeners.get(room.id);
+				}
+
+				if (listener != null) {
+					if (sent != null)
+						listener.onSent(room.id, ids(batch), sent);
+					else
+						listener.onSendFailed(room.id, ids(batch), exception, retrying);
+				}
+
+				if (sent == null)
+					return;
+			}
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	// The next message to send, along with any queued within the merge window of the one before,
+	// if merging's on. Must hold the lock.
+	private ArrayList<Message> nextBatch(Queue queue) {
+		ArrayList<Message> batch = new ArrayList<Message>();
+		for (int i=0; i<queue.entries.size(); i++) {
+			Message message = queue.entries.get(i);
+			if (!batch.isEmpty()) {
+				Message previous = batch.get(batch.size() - 1);
+				if (mergeWindow <= 0 || previous.timestamp == null || message.timestamp == null
+						|| (message.timestamp.getTime() - previous.timestamp.getTime()) > mergeWindow)
+					break;
+			}
+			batch.add(message);
+		}
+		return batch;
+	}
+
+	// lines merged into one body make a PasteMessage
+	private static String body(ArrayList<Message> batch) {
+		StringBuilder body = new StringBuilder(batch.get(0).body);
+		for (int i=1; i<batch.size(); i++)
+			body.append("\n").append(batch.get(i).body);
+		return body.toString();
+	}
+
+	private static ArrayList<String> ids(ArrayList<Message> batch) {
+		ArrayList<String> ids = new ArrayList<String>(batch.size());
+		for (int i=0; i<batch.size(); i++)
+			ids.add(batch.get(i).id);
+		return ids;
+	}
+
+	private File journal(Queue queue) {
+		return new File(directory, queue.room.id);
+	}
+
+	// Journal format: version, the subdomain the room belongs to, the room id, then (transit id, body, time queued)
+	// for each message, oldest first. An empty queue has no journal.
+	private void write(Queue queue) throws IOException {
+		if (directory == null)
+			throw new IOException("The outbox hasn't been loaded.");
+
+		File file = journal(queue);
+		if (queue.entries.isEmpty()) {
+			file.delete();
+			return;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(JOURNAL_VERSION);
+			Binary.writeString(out, queue.room.campfire.subdomain);
+			Binary.writeString(out, queue.room.id);
+			Binary.writeVarInt(out, queue.entries.size());
+			for (int i=0; i<queue.entries.size(); i++) {
+				Message message = queue.entries.get(i);
+				Binary.writeString(out, message.id);
+				Binary.writeString(out, message.body);
+				Binary.writeDate(out, message.timestamp);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace the outbox journal.");
+	}
+
+	private static Queue read(File file, Campfire campfire) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != JOURNAL_VERSION)
+				return null;
+			String subdomain = Binary.readString(in);
+			if (subdomain == null || !subdomain.equals(campfire.subdomain))
+				return null;
+
+			Queue queue = new Queue(new Room(campfire, Binary.readString(in)));
+			int length = Binary.readVarInt(in);
+			for (int i=0; i<length; i++) {
+				Message message = new Message(Binary.readString(in), Message.Type.TRANSIT, Binary.readString(in));
+				message.timestamp = Binary.readDate(in);
+				queue.entries.add(message);
+			}
+			return queue;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class Queue {
+		Room room;
+		LinkedList<Message> entries = new LinkedList<Message>();
+		int failures = 0;
+		boolean sending = false;
+
+		Queue(Room room) {
+			this.room = room;
+		}
+	}
+}
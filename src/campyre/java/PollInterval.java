@@ -0,0 +1,83 @@
+package campyre.java;
+
+// How long to wait between polls of a room, for when it's polled rather than streamed.
+//
+// Right after anything happens (new messages, or the user speaking) it polls quickly, since replies
+// tend to follow, then backs off a step with every quiet poll. It backs off much further while the
+// room isn't on screen or the battery is low, but never beyond MAX_INTERVAL, so no message
+// is ever more than that late.
+public class PollInterval {
+	// all in seconds
+	public static final int FAST_INTERVAL = 2;
+	public static final int BASE_INTERVAL = 5;
+	public static final int MAX_FOREGROUND_INTERVAL = 30;
+	public static final int MAX_INTERVAL = 120;
+
+	// how many polls stay fast after some activity
+	public static final int FAST_POLLS = 3;
+
+	// how much longer each quiet poll waits than the last
+	private static final double BACKOFF = 1.5;
+
+	// how much slower to poll while the room isn't on screen, and while the battery is low
+	private static final int BACKGROUND_FACTOR = 4;
+	private static final int LOW_BATTERY_FACTOR = 2;
+
+	// enough quiet polls to have long since reached the foreground limit
+	private static final int MAX_QUIET_POLLS = 20;
+
+	// the battery is the same for every room
+	private static volatile boolean lowBattery = false;
+
+	private boolean visible = true;
+	private int fastPolls = FAST_POLLS; // a room that was just opened is likely to be busy
+	private int quietPolls = 0;
+
+	public static void setLowBattery(boolean low) {
+		lowBattery = low;
+	}
+
+	public static boolean isLowBattery() {
+		return lowBattery;
+	}
+
+	// after each poll, with how many new messages it found (0 if it failed)
+	public synchronized void polled(int newMessages) {
+		if (newMessages > 0) {
+			fastPolls = FAST_POLLS;
+			quietPolls = 0;
+		} else if (fastPolls == 0 && quietPolls < MAX_QUIET_POLLS)
+			quietPolls += 1;
+	}
+
+	// the user said something, so the reply is worth watching for
+	public synchronized void spoke() {
+		fastPolls = FAST_POLLS;
+		quietPolls = 0;
+	}
+
+	// Returns true if the room just came back on screen, when it should be polled straight away
+	// so what's shown is current.
+	public synchronized boolean setVisible(boolean visible) {
+		boolean appeared = visible && !this.visible;
+		this.visible = visible;
+		return appeared;
+	}
+
+	// how long to wait before the next poll, in milliseconds
+	public synchronized long next() {
+		double interval;
+		if (fastPolls > 0) {
+			fastPolls -= 1;
+			interval = FAST_INTERVAL;
+		} else
+			interval = Math.min(BASE_INTERVAL * Math.pow(BACKOFF, quietPolls), MAX_FOREGROUND_INTERVAL);
+
+		if (!visible)
+			interval *= BACKGROUND_FACTOR;
+		if (lowBattery)
+			interval *= LOW_BATTERY_FACTOR;
+
+		return (long) (Math.min(interval, MAX_INTERVAL) * 1000);
+	}
+}
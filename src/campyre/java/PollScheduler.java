@@ -0,0 +1,300 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Polls any number of rooms from one timer thread, instead of a sleeping thread per room.
+//
+// Each subscribed room has its own PollInterval, saying when it's next due. When the timer wakes
+// for one room, every other room due within ALIGN_WINDOW is polled along with it, so the radio
+// wakes once for all of them. The requests themselves run on a small pool of workers,
+// at most MAX_CONCURRENT at a time, so a wakeup for many rooms is spread out rather than
+// sent all at once. Results go to each subscription's Listener, on a worker thread.
+//
+// A full page means messages may have been skipped. Once the page has been passed on (so the newest
+// messages aren't held up), the gap is filled by a bounded Backfill before the room is polled again,
+// so anything keeping messages in order never sees the next page before the gap.
+//
+// The same timer sends the Presence keepalives, waking for them if it has to, but otherwise sending
+// any that are nearly due along with polls.
+public class PollScheduler {
+	// in milliseconds
+	public static final int ALIGN_WINDOW = 2000;
+
+	public static final int MAX_CONCURRENT = 3;
+
+	public interface Listener {
+		// Newly polled messages, oldest first (possibly none).
+		// previousId is the id of the message just before them, or null if there may be a gap.
+		void onPoll(Subscription subscription, ArrayList<Message> messages, String previousId);
+
+		void onPollFailed(Subscription subscription, CampfireException exception);
+
+		// After a full page (which may have skipped messages), everything after previousId:
+		// the messages that were skipped, followed by the page already passed to onPoll.
+		void onBackfill(Subscription subscription, ArrayList<Message> messages, String previousId);
+	}
+
+	private static PollScheduler shared = null;
+
+	private ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+	private ExecutorService workers;
+	private Thread timer = null;
+
+	public PollScheduler() {
+		workers = Executors.newFixedThreadPool(MAX_CONCURRENT, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				count += 1;
+				Thread thread = new Thread(runnable, "campyre-poll-" + count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static synchronized PollScheduler shared() {
+		if (shared == null)
+			shared = new PollScheduler();
+		return shared;
+	}
+
+	// Starts polling the room straight away, for anything after lastMessageId (null for the latest).
+	public synchronized Subscription subscribe(Room room, String lastMessageId, int maxMessages, Listener listener) {
+		Subscription subscription = new Subscription(room, lastMessageId, maxMessages, listener);
+		subscriptions.add(subscription);
+
+		if (timer == null) {
+			timer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runTimer();
+				}
+			}, "campyre-poll-timer");
+			timer.setDaemon(true);
+			timer.start();
+		}
+
+		notifyAll();
+		return subscription;
+	}
+
+	public synchronized int size() {
+		return subscriptions.size();
+	}
+
+	private void runTimer() {
+		final Presence presence = Presence.shared();
+		while (true) {
+			ArrayList<Subscription> due = new ArrayList<Subscription>();
+			final ArrayList<Room> joins;
+
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				long next = Long.MAX_VALUE;
+				for (int i=0; i<subscriptions.size(); i++) {
+					Subscription subscription = subscriptions.get(i);
+					if (subscription.waiting())
+						next = Math.min(next, subscription.due);
+				}
+				next = Math.min(next, presence.nextDeadline());
+
+				try {
+					if (next == Long.MAX_VALUE) {
+						wait();
+						continue;
+					} else if (next > now) {
+						wait(next - now);
+						continue;
+					}
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				for (int i=0; i<subscriptions.size(); i++) {
+					Subscription subscription = subscriptions.get(i);
+					if (subscription.waiting() && subscription.due <= (now + ALIGN_WINDOW)) {
+						subscription.running = true;
+						due.add(subscription);
+					}
+				}
+
+				joins = presence.claimDue(now + (Presence.JOIN_EARLY * 1000));
+			}
+
+			if (!joins.isEmpty()) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						presence.keepAlive(joins);
+					}
+				});
+			}
+
+			for (int i=0; i<due.size(); i++) {
+				final Subscription subscription = due.get(i);
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						poll(subscription);
+					}
+				});
+			}
+		}
+	}
+
+	private void poll(Subscription subscription) {
+		try {
+			String since = subscription.lastMessageId();
+			int max = subscription.maxMessages;
+			ArrayList<Message> messages = fetch(subscription.room, max, since);
+
+			subscription.polled(messages);
+			subscription.interval.polled(messages.size());
+			subscription.listener.onPoll(subscription, messages, messages.size() < max ? since : null);
+
+			if (since != null && messages.size() >= max && subscription.backfill)
+				backfill(subscription, since, messages);
+		} catch (CampfireException e) {
+			subscription.interval.polled(0);
+			subscription.listener.onPollFailed(subscription, e);
+		} finally {
+			synchronized (this) {
+				subscription.running = false;
+				if (subscription.again)
+					subscription.due = System.currentTimeMillis();
+				else
+					subscription.due = System.currentTimeMillis() + subscription.interval.next();
+				subscription.again = false;
+				notifyAll();
+			}
+		}
+	}
+
+	// on a worker thread; the checks in tests/ poll without a network
+	ArrayList<Message> fetch(Room room, int max, String since) throws CampfireException {
+		return Message.recent(room, max, since);
+	}
+
+	private void backfill(Subscription subscription, String since, ArrayList<Message> page) {
+		try {
+			ArrayList<Message> messages = Backfill.run(subscription.room, since, page);
+			if (messages != null)
+				subscription.listener.onBackfill(subscription, messages, since);
+		} catch (CampfireException e) {
+			// the gap stays, it's filled in when the day's transcript is loaded
+		}
+	}
+
+	// a poll already under way is followed by another straight after
+	private synchronized void pollNow(Subscription subscription) {
+		if (subscription.running)
+			subscription.again = true;
+		else
+			subscription.due = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	private synchronized void setPaused(Subscription subscription, boolean paused) {
+		subscription.paused = paused;
+		notifyAll();
+	}
+
+	private synchronized void cancel(Subscription subscription) {
+		subscriptions.remove(subscription);
+		notifyAll();
+	}
+
+	public class Subscription {
+		public final Room room;
+		public final PollInterval interval = new PollInterval();
+
+		private Listener listener;
+		private String lastMessageId;
+		private volatile int maxMessages;
+		private volatile boolean backfill = true;
+
+		// guarded by the scheduler
+		private long due = 0;
+		private boolean running = false, again = false, paused = false;
+
+		private Subscription(Room room, String lastMessageId, int maxMessages, Listener listener) {
+			this.room = room;
+			this.lastMessageId = lastMessageId;
+			this.maxMessages = maxMessages;
+			this.listener = listener;
+		}
+
+		public synchronized String lastMessageId() {
+			return lastMessageId;
+		}
+
+		// the user said something, so the reply is worth watching for
+		public void spoke() {
+			interval.spoke();
+			pollNow();
+		}
+
+		// Whether a full page (so a gap behind it) is backfilled, at a transcript request for each of up to Backfill.MAX_DAYS days.
+		// Turn it off if onBackfill would only throw the messages away.
+		public void setBackfill(boolean backfill) {
+			this.backfill = backfill;
+		}
+
+		public void setVisible(boolean visible) {
+			if (interval.setVisible(visible))
+				pollNow();
+		}
+
+		// if it's being polled already, it's polled again straight after
+		public void pollNow() {
+			PollScheduler.this.pollNow(this);
+		}
+
+		// While paused (e.g. while the room is being streamed instead) the room isn't polled,
+		// though a poll already under way still finishes.
+		public void pause() {
+			setPaused(this, true);
+		}
+
+		// Carries on polling, straight away, from the given message (or from where it left off, if null).
+		public void resume(String lastMessageId) {
+			synchronized (this) {
+				if (lastMessageId != null)
+					this.lastMessageId = lastMessageId;
+			}
+			setPaused(this, false);
+			pollNow();
+		}
+
+		// Stops polling the room for good. A poll already under way still finishes,
+		// but nothing more is scheduled.
+		public void cancel() {
+			PollScheduler.this.cancel(this);
+		}
+
+		public boolean isPaused() {
+			synchronized (PollScheduler.this) {
+				return paused;
+			}
+		}
+
+		// not due to be polled while it's already being polled, or while paused
+		private boolean waiting() {
+			return !running && !paused;
+		}
+
+		public void setMaxMessages(int maxMessages) {
+			this.maxMessages = maxMessages;
+		}
+
+		private synchronized void polled(ArrayList<Message> messages) {
+			if (!messages.isEmpty())
+				lastMessageId = messages.get(messages.size() - 1).id;
+		}
+	}
+}
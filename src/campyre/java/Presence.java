@@ -0,0 +1,170 @@
+package campyre.java;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+// Keeps track of when each room last saw proof that we're in it, so we're joined again before
+// Campfire idle-kicks us out, and never more often than that. A join, a successful speak,
+// and a connected stream all count.
+//
+// Watched rooms get keepalive joins from the PollScheduler, which wakes for them when they're due,
+// and sends any that are nearly due (within JOIN_EARLY) along with polls, so they share a radio wakeup.
+// Only one join per room is ever in flight, whoever asks for it.
+public class Presence {
+	// in seconds, how long being in a room lasts without proving it again
+	public static final int JOIN_TIMEOUT = 60;
+
+	// in seconds, how early a keepalive can go out to share a wakeup with polls
+	public static final int JOIN_EARLY = 20;
+
+	// in seconds, how long to wait before trying a failed keepalive again
+	private static final int RETRY_DELAY = 15;
+
+	private static Presence shared = null;
+
+	private HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+	public static synchronized Presence shared() {
+		if (shared == null)
+			shared = new Presence();
+		return shared;
+	}
+
+	// keepalives are sent for the room until it's unwatched
+	public synchronized void watch(Room room) {
+		entry(room.id).room = room;
+	}
+
+	public synchronized void unwatch(String roomId) {
+		Entry entry = entries.get(roomId);
+		if (entry != null)
+			entry.room = null;
+	}
+
+	// after leaving the room, so it's joined again straight away when it's next needed
+	public synchronized void left(String roomId) {
+		entries.remove(roomId);
+	}
+
+	public synchronized void proven(String roomId) {
+		proven(roomId, System.currentTimeMillis());
+	}
+
+	// e.g. restoring what was known before the process was killed
+	public synchronized void proven(String roomId, long at) {
+		Entry entry = entry(roomId);
+		entry.lastProven = Math.max(entry.lastProven, at);
+	}
+
+	public synchronized long lastProven(String roomId) {
+		Entry entry = entries.get(roomId);
+		return entry == null ? 0 : entry.lastProven;
+	}
+
+	// a connected stream proves we're there for as long as it lasts
+	public synchronized void setStreaming(String roomId, boolean streaming) {
+		Entry entry = entry(roomId);
+		if (streaming || entry.streaming)
+			entry.lastProven = System.currentTimeMillis();
+		entry.streaming = streaming;
+	}
+
+	// Joins the room if nothing has proven we're in it for JOIN_TIMEOUT, unless a join is already under way.
+	public void joinIfNeeded(Room room) throws CampfireException {
+		synchronized (this) {
+			Entry entry = entry(room.id);
+			if (entry.joining || entry.streaming || !entry.expired(System.currentTimeMillis()))
+				return;
+			entry.joining = true;
+		}
+		join(room);
+	}
+
+	// the next time a watched room will need a keepalive, or Long.MAX_VALUE if none will
+	public synchronized long nextDeadline() {
+		long next = Long.MAX_VALUE;
+		Iterator<Entry> all = entries.values().iterator();
+		while (all.hasNext()) {
+			Entry entry = all.next();
+			if (entry.waiting())
+				next = Math.min(next, entry.deadline());
+		}
+		return next;
+	}
+
+	// Watched rooms that will need a keepalive by the given time. They're claimed,
+	// so nothing else joins them until keepAlive() has been called with them.
+	public synchronized ArrayList<Room> claimDue(long by) {
+		ArrayList<Room> due = new ArrayList<Room>();
+		Iterator<Entry> all = entries.values().iterator();
+		while (all.hasNext()) {
+			Entry entry = all.next();
+			if (entry.waiting() && entry.deadline() <= by) {
+				entry.joining = true;
+				due.add(entry.room);
+			}
+		}
+		return due;
+	}
+
+	// joins the claimed rooms; failures are tried again after RETRY_DELAY
+	public void keepAlive(ArrayList<Room> claimed) {
+		for (int i=0; i<claimed.size(); i++) {
+			try {
+				join(claimed.get(i));
+			} catch (CampfireException e) {
+				// tried again later
+			}
+		}
+	}
+
+	private void join(Room room) throws CampfireException {
+		boolean joined = false;
+		try {
+			room.join();
+			joined = true;
+		} finally {
+			finished(room.id, joined);
+		}
+	}
+
+	private synchronized void finished(String roomId, boolean joined) {
+		Entry entry = entry(roomId);
+		entry.joining = false;
+		long now = System.currentTimeMillis();
+		if (joined)
+			entry.lastProven = Math.max(entry.lastProven, now);
+		else
+			entry.retryAt = now + (RETRY_DELAY * 1000);
+	}
+
+	private Entry entry(String roomId) {
+		Entry entry = entries.get(roomId);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(roomId, entry);
+		}
+		return entry;
+	}
+
+	private static class Entry {
+		Room room = null; // set while watched
+		long lastProven = 0;
+		long retryAt = 0;
+		boolean streaming = false, joining = false;
+
+		boolean expired(long now) {
+			return (now - lastProven) > (JOIN_TIMEOUT * 1000);
+		}
+
+		long deadline() {
+			return Math.max(lastProven + (JOIN_TIMEOUT * 1000), retryAt);
+		}
+
+		// watched, and not already taken care of
+		boolean waiting() {
+			return room != null && !streaming && !joining;
+		}
+	}
+}
@@ -1,26 +1,44 @@
 package campyre.java;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.cookie.DateParseException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class Room implements Comparable<Room>, Serializable {
+public class Room implements Comparable<Room>, Externalizable {
 	private static final long serialVersionUID = 1L;
+	private static final int LIST_VERSION = 1;
 	
 	public String id, name, topic;
 	public boolean full = false;
 	public Campfire campfire;
 	public ArrayList<User> initialUsers = null;
 	
+	// only for Externalizable
+	public Room() {}
+
 	// For those times when you don't need a whole Room's details,
 	// You just have the ID and need a Room function (e.g. uploading a file)
 	public Room(Campfire campfire, String id) {
@@ -46,6 +64,124 @@ public class Room implements Comparable<Room>, Serializable {
 		}
 	}
 	
+	// the Campfire is written once here, and shared by the room's users when read back
+	public void write(DataOutput out) throws IOException {
+		out.writeBoolean(campfire != null);
+		if (campfire != null)
+			campfire.write(out);
+		writeFields(out);
+	}
+
+	public static Room read(DataInput in) throws IOException {
+		Room room = new Room();
+		room.readFields(in, in.readBoolean() ? Campfire.read(in) : null);
+		return room;
+	}
+
+	// leaves out the Campfire, for when many rooms belonging to the same one are written together
+	protected void writeFields(DataOutput out) throws IOException {
+		writeFields(out, true);
+	}
+
+	// leaving out the users too unless withUsers, so the room reads back without any
+	protected void writeFields(DataOutput out, boolean withUsers) throws IOException {
+		Binary.writeString(out, id);
+		Binary.writeString(out, name);
+		Binary.writeString(out, topic);
+		out.writeBoolean(full);
+
+		ArrayList<User> initialUsers = withUsers ? this.initialUsers : null;
+		if (initialUsers == null)
+			Binary.writeVarInt(out, 0);
+		else {
+			int length = initialUsers.size();
+			Binary.writeVarInt(out, length + 1);
+			for (int i=0; i<length; i++)
+				initialUsers.get(i).write(out);
+		}
+	}
+
+	protected void readFields(DataInput in, Campfire campfire) throws IOException {
+		this.campfire = campfire;
+		id = Binary.readString(in);
+		name = Binary.readString(in);
+		topic = Binary.readString(in);
+		full = in.readBoolean();
+
+		int length = Binary.readVarInt(in) - 1;
+		if (length >= 0) {
+			initialUsers = new ArrayList<User>(length);
+			for (int i=0; i<length; i++)
+				initialUsers.add(User.read(campfire, in));
+		} else
+			initialUsers = null;
+	}
+
+	// Room list snapshot: version, the subdomain the rooms belong to, then each room without its
+	// Campfire (or users, which the room list never has).
+	public static void saveAll(File file, Campfire campfire, List<Room> rooms) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(LIST_VERSION);
+			Binary.writeString(out, campfire.subdomain);
+			int length = rooms.size();
+			Binary.writeVarInt(out, length);
+			for (int i=0; i<length; i++)
+				rooms.get(i).writeFields(out, false);
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace room list snapshot.");
+	}
+
+	// the saved room list, or null if there isn't one for this Campfire
+	public static ArrayList<Room> loadAll(File file, Campfire campfire) throws IOException {
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != LIST_VERSION)
+				return null;
+			String subdomain = Binary.readString(in);
+			if (subdomain == null || !subdomain.equals(campfire.subdomain))
+				return null;
+
+			int length = Binary.readVarInt(in);
+			ArrayList<Room> rooms = new ArrayList<Room>(length);
+			for (int i=0; i<length; i++) {
+				Room room = new Room();
+				room.readFields(in, campfire);
+				rooms.add(room);
+			}
+			return rooms;
+		} finally {
+			in.close();
+		}
+	}
+
+	// whether everything shown about the room in a list is the same
+	public boolean sameDetails(Room other) {
+		return equal(id, other.id) && equal(name, other.name) && equal(topic, other.topic) && full == other.full;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFields(in, in.readBoolean() ? Campfire.read(in) : null);
+	}
+
 	public static Room find(Campfire campfire, String id) throws CampfireException {
 		try {
 			return new Room(campfire, new CampfireRequest(campfire).getOne(Campfire.roomPath(id), "room"));
@@ -106,12 +242,17 @@ public class Room implements Comparable<Room>, Serializable {
 	}
 	
 	public Message speak(String body) throws CampfireException {
+		return speak(body, null);
+	}
+	
+	// with the client to send it over, to reuse its connection (or null for a new one)
+	public Message speak(String body, DefaultHttpClient client) throws CampfireException {
 		String type = (body.contains("\n")) ? "PasteMessage" : "TextMessage";
 		String url = Campfire.speakPath(id);
 		try {
 			body = new String(body.getBytes("UTF-8"), "ISO-8859-1");
 			String request = new JSONObject().put("message", new JSONObject().put("type", type).put("body", body)).toString();
-			HttpResponse response = new CampfireRequest(campfire).post(url, request);
+			HttpResponse response = new CampfireRequest(campfire, client).post(url, request);
 			int statusCode = response.getStatusLine().getStatusCode();
 			if (statusCode == HttpStatus.SC_CREATED) {
 				String responseBody = CampfireRequest.responseBody(response);
@@ -128,7 +269,12 @@ public class Room implements Comparable<Room>, Serializable {
 	}
 	
 	public void uploadImage(InputStream stream, String filename, String mimeType) throws CampfireException {
-		new CampfireRequest(campfire).uploadFile(Campfire.uploadPath(id), stream, filename, mimeType);
+		uploadImage(stream, -1, filename, mimeType);
+	}
+	
+	// length in bytes, or -1 if it isn't known
+	public void uploadImage(InputStream stream, long length, String filename, String mimeType) throws CampfireException {
+		new CampfireRequest(campfire).uploadFile(Campfire.uploadPath(id), stream, length, filename, mimeType);
 	}
 
 	@Override public String toString() {
@@ -0,0 +1,94 @@
+package campyre.java;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Everything needed to put a room back on screen after the process has been killed:
+// the room and the messages being shown (with their speakers' names). Messages still in transit
+// aren't included, they come back from the Outbox's journal.
+//
+// Written in the models' binary encodings, and read back with a single read of the whole file.
+// The Campfire (and so the credentials) is left out, the caller supplies the current one.
+public class RoomSnapshot {
+	private static final int FORMAT_VERSION = 2;
+
+	public Room room;
+	public String lastMessageId;
+	public ArrayList<Message> messages;
+	public long savedAt;
+
+	public RoomSnapshot(Room room, String lastMessageId, List<Message> messages) {
+		this.room = room;
+		this.lastMessageId = lastMessageId;
+		this.messages = new ArrayList<Message>(messages);
+		this.savedAt = System.currentTimeMillis();
+	}
+
+	private RoomSnapshot() {}
+
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16 * 1024));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(savedAt);
+			room.writeFields(out);
+			Binary.writeString(out, lastMessageId);
+			writeMessages(out, messages);
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace room snapshot.");
+	}
+
+	// the snapshot in the file, or null if there isn't a usable one
+	public static RoomSnapshot read(File file, Campfire campfire) throws IOException {
+		if (!file.exists())
+			return null;
+
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream raw = new DataInputStream(new FileInputStream(file));
+		try {
+			raw.readFully(bytes);
+		} finally {
+			raw.close();
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != FORMAT_VERSION)
+			return null;
+
+		RoomSnapshot snapshot = new RoomSnapshot();
+		snapshot.savedAt = in.readLong();
+		snapshot.room = new Room();
+		snapshot.room.readFields(in, campfire);
+		snapshot.lastMessageId = Binary.readString(in);
+		snapshot.messages = readMessages(in);
+		return snapshot;
+	}
+
+	private static void writeMessages(DataOutputStream out, List<Message> messages) throws IOException {
+		int length = messages.size();
+		Binary.writeVarInt(out, length);
+		for (int i=0; i<length; i++)
+			messages.get(i).write(out);
+	}
+
+	private static ArrayList<Message> readMessages(DataInputStream in) throws IOException {
+		int length = Binary.readVarInt(in);
+		ArrayList<Message> messages = new ArrayList<Message>(length);
+		for (int i=0; i<length; i++)
+			messages.add(Message.read(in));
+		return messages;
+	}
+}
@@ -0,0 +1,283 @@
+package campyre.java;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lgpl.haustein.Base64Encoder;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// A room's messages as they're posted, over Campfire's streaming API: one long-lived connection
+// to live.json, read as it arrives, instead of asking /recent for anything new every few seconds.
+//
+// A dropped connection is re-opened, resuming after the last message seen: since_message_id is passed
+// along, and anything newer is fetched from /recent (and a Backfill, if that's more than a page)
+// before the stream is read, so nothing is missed while it was down. If the stream can't be
+// (re)established, run() gives up and returns, and the caller should fall back to polling.
+// While it's connected, the stream counts as Presence in the room, so no keepalives are needed.
+public class RoomStream {
+	public static final String HOST = "streaming.campfirenow.com";
+
+	// consecutive failed connections before giving up on the stream
+	public static final int MAX_FAILURES = 3;
+
+	// how many messages to ask /recent for when catching up; a full page may have left a gap
+	public static final int CATCH_UP_LIMIT = 100;
+
+	// seconds to wait before each successive attempt to reconnect
+	private static final int[] RECONNECT_DELAYS = new int[] {1, 5, 15};
+
+	// in seconds; Campfire sends a keepalive every few seconds, so a connection quiet for this long is dead
+	private static final int CONNECT_TIMEOUT = 20;
+	private static final int READ_TIMEOUT = 60;
+
+	private static final int BUFFER_SIZE = 4 * 1024;
+
+	// ids of the last messages delivered, since the catch-up and the stream can overlap
+	private static final int DELIVERED_IDS = 200;
+
+	public interface Listener {
+		// Called on the streaming thread with every message that arrived together, oldest first.
+		// previousId is the id of the message just before them, or null if there may be a gap.
+		void onMessages(ArrayList<Message> messages, String previousId);
+
+		// After a catch-up that may have skipped messages, everything after previousId:
+		// the messages that were skipped, followed by the ones already passed to onMessages.
+		void onBackfill(ArrayList<Message> messages, String previousId);
+	}
+
+	private Room room;
+	private Listener listener;
+	private String lastMessageId;
+	private LinkedHashMap<String,String> delivered;
+
+	private volatile boolean closed = false;
+	private volatile HttpURLConnection connection = null;
+	private volatile Thread runner = null;
+
+	public RoomStream(Room room, String lastMessageId, Listener listener) {
+		this.room = room;
+		this.lastMessageId = lastMessageId;
+		this.listener = listener;
+
+		this.delivered = new LinkedHashMap<String,String>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+				return size() > DELIVERED_IDS;
+			}
+		};
+	}
+
+	// Streams (blocking) until closed, or until the stream can't be established MAX_FAILURES times in a row.
+	// Returns true if it was closed, false if it gave up.
+	public boolean run() {
+		runner = Thread.currentThread();
+		try {
+			int failures = 0;
+			while (!closed) {
+				try {
+					Reader in = open();
+					failures = 0;
+					Presence.shared().setStreaming(room.id, true);
+					catchUp();
+					read(in);
+				} catch (IOException e) {
+					// reconnected below
+				} catch (CampfireException e) {
+					// reconnected below
+				} finally {
+					Presence.shared().setStreaming(room.id, false);
+					disconnect();
+				}
+
+				if (closed)
+					break;
+
+				failures += 1;
+				if (failures >= MAX_FAILURES)
+					return false;
+
+				try {
+					Thread.sleep(RECONNECT_DELAYS[Math.min(failures, RECONNECT_DELAYS.length) - 1] * 1000);
+				} catch (InterruptedException e) {
+					// closed, or try again now
+				}
+			}
+			return true;
+		} finally {
+			runner = null;
+		}
+	}
+
+	// Can be called from any thread, and makes run() return, without waiting out a reconnect delay.
+	public void close() {
+		closed = true;
+		disconnect();
+		Thread runner = this.runner;
+		if (runner != null)
+			runner.interrupt();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	// the last message seen, to carry on from when polling instead
+	public synchronized String lastMessageId() {
+		return lastMessageId;
+	}
+
+	// the checks in tests/ stream without a network
+	Reader open() throws IOException, CampfireException {
+		return new InputStreamReader(connect().getInputStream(), "UTF-8");
+	}
+
+	private HttpURLConnection connect() throws IOException, CampfireException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url()).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT * 1000);
+		connection.setReadTimeout(READ_TIMEOUT * 1000);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Authorization", "Basic " + Base64Encoder.encode(room.campfire.token + ":X"));
+		connection.setRequestProperty("User-Agent", Campfire.USER_AGENT);
+		this.connection = connection;
+
+		int statusCode = connection.getResponseCode();
+		if (statusCode != HttpURLConnection.HTTP_OK)
+			throw new CampfireException("Bad status code from the stream: " + statusCode);
+		return connection;
+	}
+
+	private void disconnect() {
+		HttpURLConnection connection = this.connection;
+		if (connection != null) {
+			this.connection = null;
+			connection.disconnect();
+		}
+	}
+
+	private String url() throws UnsupportedEncodingException {
+		StringBuilder url = new StringBuilder("https://")
+			.append(HOST)
+			.append(Campfire.streamPath(room.id))
+			.append(".json");
+
+		String since = lastMessageId();
+		if (since != null)
+			url.append("?since_message_id=").append(URLEncoder.encode(since, "UTF-8"));
+		return url.toString();
+	}
+
+	// whatever was said since the last message seen, while the stream wasn't connected
+	private void catchUp() throws CampfireException {
+		String since = lastMessageId();
+		if (since == null)
+			return;
+
+		ArrayList<Message> missed = Message.recent(room, CATCH_UP_LIMIT, since);
+		boolean complete = missed.size() < CATCH_UP_LIMIT;
+		deliver(missed, complete);
+
+		// before reading on, so the stream's messages can't get ahead of the gap
+		if (!complete) {
+			try {
+				ArrayList<Message> messages = Backfill.run(room, since, missed);
+				if (messages != null && !closed)
+					listener.onBackfill(messages, since);
+			} catch (CampfireException e) {
+				// the gap stays, it's filled in when the day's transcript is loaded
+			}
+		}
+	}
+
+	// Picks complete JSON objects out of the stream as they arrive, keeping track of strings
+	// so braces inside message bodies don't count. Anything between objects is skipped
+	// (Campfire separates them with whitespace, and sends a lone space as a keepalive).
+	void read(Reader in) throws IOException, CampfireException {
+		char[] buffer = new char[BUFFER_SIZE];
+		StringBuilder object = new StringBuilder();
+		int depth = 0;
+		boolean inString = false, escaped = false;
+
+		int count;
+		while (!closed && (count = in.read(buffer)) != -1) {
+			ArrayList<Message> batch = new ArrayList<Message>();
+
+			for (int i=0; i<count; i++) {
+				char c = buffer[i];
+				if (depth == 0 && c != '{')
+					continue;
+
+				object.append(c);
+				if (inString) {
+					if (escaped)
+						escaped = false;
+					else if (c == '\\')
+						escaped = true;
+					else if (c == '"')
+						inString = false;
+				} else if (c == '"')
+					inString = true;
+				else if (c == '{')
+					depth += 1;
+				else if (c == '}') {
+					depth -= 1;
+					if (depth == 0) {
+						Message message = parse(object.toString());
+						if (message != null)
+							batch.add(message);
+						object.setLength(0);
+					}
+				}
+			}
+
+			if (!batch.isEmpty())
+				deliver(batch, true);
+		}
+	}
+
+	private static Message parse(String json) throws CampfireException {
+		try {
+			Message message = new Message(new JSONObject(json));
+			return message.type == Message.Type.UNSUPPORTED ? null : message;
+		} catch (JSONException e) {
+			throw new CampfireException(e, "Could not load a streamed message from its JSON.");
+		} catch (DateParseException e) {
+			throw new CampfireException(e, "Could not parse date from a streamed message's JSON.");
+		}
+	}
+
+	// Hands on the messages not already delivered. contiguous is whether they follow on
+	// directly from the last message seen.
+	private void deliver(ArrayList<Message> messages, boolean contiguous) {
+		ArrayList<Message> fresh = new ArrayList<Message>(messages.size());
+		String previousId;
+
+		synchronized (this) {
+			previousId = contiguous ? lastMessageId : null;
+			for (int i=0; i<messages.size(); i++) {
+				Message message = messages.get(i);
+				if (delivered.containsKey(message.id))
+					continue;
+				delivered.put(message.id, message.id);
+				fresh.add(message);
+			}
+			if (!fresh.isEmpty())
+				lastMessageId = fresh.get(fresh.size() - 1).id;
+		}
+
+		if (!fresh.isEmpty() && !closed)
+			listener.onMessages(fresh, previousId);
+	}
+}
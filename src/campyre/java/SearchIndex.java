@@ -0,0 +1,748 @@
+package campyre.java;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Full-text inverted index over a room's TranscriptArchive, for searching history offline.
+//
+// Documents are archive ordinals, so a hit can be read straight back out of the archive.
+// New messages are indexed into an in-memory buffer, which is flushed every FLUSH_DOCS messages
+// to an immutable segment file: the postings (delta-encoded varints of documents and word
+// positions) followed by a sorted term dictionary, which is the only part kept on the heap.
+// Postings are read from a memory mapping. Segments are merged once there are too many.
+// Each segment knows the range of documents it covers, so when the archive is rewritten from
+// some ordinal on, only the segments reaching past it need rewriting.
+//
+// Queries are words (all must match), "quoted phrases", and prefixes ending in *.
+// Results are ranked by tf-idf, newest first among equals.
+public class SearchIndex implements Trimmable {
+	public static final int FLUSH_DOCS = 1000;
+	public static final int MAX_SEGMENTS = 8;
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAX_TOKEN_LENGTH = 64;
+	private static final int UPDATE_PAGE = 500;
+	private static final String META_FILE = "meta";
+
+	private static final Pattern QUERY_PART = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+	private static HashMap<String,SearchIndex> open = new HashMap<String,SearchIndex>();
+	private static ExecutorService flusher = null;
+
+	private File directory;
+	private ArrayList<Segment> segments = new ArrayList<Segment>();
+	private int nextSegment = 0;
+
+	// archive ordinals below flushed are in segments, those below indexed are at least in the buffer
+	private long flushed = 0;
+	private long indexed = 0;
+	private TreeMap<String,Postings> buffer = new TreeMap<String,Postings>();
+
+	private SearchIndex(File directory) throws IOException {
+		this.directory = directory;
+		directory.mkdirs();
+		readMeta();
+	}
+
+	public static SearchIndex open(File directory) throws CampfireException {
+		synchronized (open) {
+			String key = directory.getAbsolutePath();
+			SearchIndex index = open.get(key);
+			if (index == null) {
+				try {
+					index = new SearchIndex(directory);
+				} catch (IOException e) {
+					throw new CampfireException(e, "Couldn't open the search index.");
+				}
+				open.put(key, index);
+				MemoryBudget.shared().register("search buffers", index, MemoryBudget.PRIORITY_NORMAL);
+			}
+			return index;
+		}
+	}
+
+	private static synchronized ExecutorService flusher() {
+		if (flusher == null) {
+			flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "campyre-search");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return flusher;
+	}
+
+	// Forgets every open index, e.g. on logging out, before their directories are deleted.
+	public static void closeAll() {
+		synchronized (open) {
+			Iterator<SearchIndex> all = open.values().iterator();
+			while (all.hasNext())
+				MemoryBudget.shared().unregister(all.next());
+			open.clear();
+		}
+	}
+
+	// number of archived messages indexed so far
+	public synchronized long size() {
+		return indexed;
+	}
+
+	// Indexes whatever has been appended to the archive since the last update.
+	public synchronized void update(TranscriptArchive archive) throws CampfireException {
+		long total = archive.size();
+		while (indexed < total) {
+			ArrayList<Message> page = archive.read(indexed, UPDATE_PAGE);
+			if (page.isEmpty())
+				break;
+
+			for (int i=0; i<page.size(); i++) {
+				Message message = page.get(i);
+				if (message.body != null)
+					add((int) indexed, message.body);
+				indexed += 1;
+
+				if ((indexed - flushed) >= FLUSH_DOCS)
+					flush();
+			}
+		}
+	}
+
+	// Writes out the buffer as a new segment. Anything not flushed is re-indexed from the archive
+	// the next time the index is opened, so this only needs calling now and then.
+	public synchronized void flush() throws CampfireException {
+		if (indexed == flushed)
+			return;
+
+		try {
+			if (!buffer.isEmpty()) {
+				int number = nextSegment++;
+				writeSegment(segmentFile(number), buffer);
+				segments.add(new Segment(number, segmentFile(number), flushed, indexed));
+				buffer.clear();
+			}
+			flushed = indexed;
+			writeMeta();
+
+			if (segments.size() > MAX_SEGMENTS)
+				merge();
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't write the search index.");
+		}
+	}
+
+	// Forgets everything indexed from the given archive ordinal on, e.g. after the archive has been
+	// rewritten from there, so the next update() indexes it again.
+	public synchronized void rewind(long ordinal) throws CampfireException {
+		if (ordinal >= indexed)
+			return;
+
+		buffer.clear();
+		if (ordinal >= flushed) {
+			indexed = flushed;
+			return;
+		}
+
+		try {
+			ArrayList<Segment> kept = new ArrayList<Segment>();
+			ArrayList<Segment> dropped = new ArrayList<Segment>();
+			for (int s=0; s<segments.size(); s++) {
+				Segment segment = segments.get(s);
+				if (segment.end <= ordinal) {
+					kept.add(segment);
+					continue;
+				}
+				dropped.add(segment);
+				if (segment.first >= ordinal)
+					continue;
+
+				TreeMap<String,Postings> terms = new TreeMap<String,Postings>();
+				for (int t=0; t<segment.terms.length; t++) {
+					Postings postings = segment.postings(t).before((int) ordinal);
+					if (postings.size > 0)
+						terms.put(segment.terms[t], postings);
+				}
+				int number = nextSegment++;
+				writeSegment(segmentFile(number), terms);
+				kept.add(new Segment(number, segmentFile(number), segment.first, ordinal));
+			}
+
+			segments = kept;
+			flushed = indexed = ordinal;
+			writeMeta();
+
+			for (int s=0; s<dropped.size(); s++)
+				segmentFile(dropped.get(s).number).delete();
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't write the search index.");
+		}
+	}
+
+	// up to max hits, best first
+	public synchronized ArrayList<Result> search(String query, int max) throws CampfireException {
+		ArrayList<Result> results = new ArrayList<Result>();
+
+		HashMap<Integer,Float> scores = null;
+		Matcher matcher = QUERY_PART.matcher(query);
+		try {
+			while (matcher.find()) {
+				HashMap<Integer,Integer> hits;
+				if (matcher.group(1) != null)
+					hits = phrase(tokenize(matcher.group(1)));
+				else {
+					String word = matcher.group(2);
+					if (word.endsWith("*") && word.length() > 1) {
+						ArrayList<String> tokens = tokenize(word.substring(0, word.length() - 1));
+						hits = tokens.size() == 1 ? prefix(tokens.get(0)) : phrase(tokens);
+					} else {
+						ArrayList<String> tokens = tokenize(word);
+						hits = tokens.size() == 1 ? term(tokens.get(0)) : phrase(tokens);
+					}
+				}
+
+				if (hits == null) // a part with no searchable words in it
+					continue;
+
+				float idf = (float) Math.log(1 + ((double) Math.max(indexed, 1) / Math.max(hits.size(), 1)));
+				if (scores == null) {
+					scores = new HashMap<Integer,Float>();
+					Iterator<Map.Entry<Integer,Integer>> iterator = hits.entrySet().iterator();
+					while (iterator.hasNext()) {
+						Map.Entry<Integer,Integer> hit = iterator.next();
+						scores.put(hit.getKey(), hit.getValue() * idf);
+					}
+				} else {
+					Iterator<Map.Entry<Integer,Float>> iterator = scores.entrySet().iterator();
+					while (iterator.hasNext()) {
+						Map.Entry<Integer,Float> score = iterator.next();
+						Integer tf = hits.get(score.getKey());
+						if (tf == null)
+							iterator.remove();
+						else
+							score.setValue(score.getValue() + tf * idf);
+					}
+				}
+
+				if (scores.isEmpty())
+					return results;
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't read the search index.");
+		}
+
+		if (scores == null)
+			return results;
+
+		Iterator<Map.Entry<Integer,Float>> iterator = scores.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer,Float> score = iterator.next();
+			results.add(new Result(score.getKey(), score.getValue()));
+		}
+
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				if (a.score != b.score)
+					return a.score > b.score ? -1 : 1;
+				return a.ordinal > b.ordinal ? -1 : (a.ordinal < b.ordinal ? 1 : 0);
+			}
+		});
+
+		if (results.size() > max)
+			return new ArrayList<Result>(results.subList(0, max));
+		return results;
+	}
+
+	// the messages for a set of results, in the same order
+	public static ArrayList<Message> messages(TranscriptArchive archive, List<Result> results) throws CampfireException {
+		ArrayList<Message> messages = new ArrayList<Message>(results.size());
+		for (int i=0; i<results.size(); i++) {
+			ArrayList<Message> one = archive.read(results.get(i).ordinal, 1);
+			if (!one.isEmpty())
+				messages.add(one.get(0));
+		}
+		return messages;
+	}
+
+	@Override
+	public synchronized long memoryUsage() {
+		long total = 0;
+		Iterator<Map.Entry<String,Postings>> iterator = buffer.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String,Postings> entry = iterator.next();
+			total += MemoryBudget.ENTRY_OVERHEAD + MemoryBudget.estimate(entry.getKey()) + entry.getValue().memoryUsage();
+		}
+		return total;
+	}
+
+	// Trimming happens on the main thread, with memory already short, so it never touches the disk:
+	// when memory's only running low, the buffer is flushed to a segment early, in the background;
+	// when it's critical, the buffer is dropped now, and indexed again from the archive on the next update.
+	@Override
+	public synchronized void trim(int level) {
+		if (level >= MemoryBudget.TRIM_COMPLETE) {
+			buffer.clear();
+			indexed = flushed;
+		} else if (!buffer.isEmpty()) {
+			flusher().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (CampfireException e) {
+						// it's still in the buffer, or it'll be rebuilt from the archive
+					}
+				}
+			});
+		}
+	}
+
+	public static ArrayList<String> tokenize(String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		String lower = text.toLowerCase(Locale.US);
+		int length = lower.length();
+		int start = -1;
+		for (int i=0; i<=length; i++) {
+			boolean wordChar = i < length && Character.isLetterOrDigit(lower.charAt(i));
+			if (wordChar && start < 0)
+				start = i;
+			else if (!wordChar && start >= 0) {
+				if ((i - start) <= MAX_TOKEN_LENGTH)
+					tokens.add(lower.substring(start, i));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	private void add(int doc, String body) {
+		ArrayList<String> tokens = tokenize(body);
+		for (int position=0; position<tokens.size(); position++) {
+			String token = tokens.get(position);
+			Postings postings = buffer.get(token);
+			if (postings == null) {
+				postings = new Postings();
+				buffer.put(token, postings);
+			}
+			postings.add(doc, position);
+		}
+	}
+
+	// doc -> number of occurrences
+	private HashMap<Integer,Integer> term(String token) throws IOException {
+		HashMap<Integer,Integer> hits = new HashMap<Integer,Integer>();
+		Postings postings = lookup(token);
+		for (int i=0; i<postings.size; i++)
+			hits.put(postings.docs[i], postings.counts[i]);
+		return hits;
+	}
+
+	private HashMap<Integer,Integer> prefix(String prefix) throws IOException {
+		HashMap<Integer,Integer> hits = new HashMap<Integer,Integer>();
+		for (int s=0; s<segments.size(); s++) {
+			Segment segment = segments.get(s);
+			int from = segment.ceiling(prefix);
+			for (int t=from; t<segment.terms.length && segment.terms[t].startsWith(prefix); t++)
+				count(hits, segment.postings(t));
+		}
+
+		Iterator<Map.Entry<String,Postings>> iterator = buffer.tailMap(prefix).entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String,Postings> entry = iterator.next();
+			if (!entry.getKey().startsWith(prefix))
+				break;
+			count(hits, entry.getValue());
+		}
+		return hits;
+	}
+
+	private HashMap<Integer,Integer> phrase(ArrayList<String> tokens) throws IOException {
+		if (tokens.isEmpty())
+			return null;
+		if (tokens.size() == 1)
+			return term(tokens.get(0));
+
+		ArrayList<HashMap<Integer,int[]>> positions = new ArrayList<HashMap<Integer,int[]>>();
+		for (int i=0; i<tokens.size(); i++) {
+			Postings postings = lookup(tokens.get(i));
+			HashMap<Integer,int[]> byDoc = new HashMap<Integer,int[]>();
+			for (int d=0; d<postings.size; d++)
+				byDoc.put(postings.docs[d], postings.positionsOf(d));
+			positions.add(byDoc);
+		}
+
+		HashMap<Integer,Integer> hits = new HashMap<Integer,Integer>();
+		Iterator<Map.Entry<Integer,int[]>> iterator = positions.get(0).entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer,int[]> first = iterator.next();
+			int occurrences = 0;
+			int[] starts = first.getValue();
+			for (int p=0; p<starts.length; p++) {
+				boolean matched = true;
+				for (int t=1; t<tokens.size() && matched; t++) {
+					int[] next = positions.get(t).get(first.getKey());
+					matched = next != null && contains(next, starts[p] + t);
+				}
+				if (matched)
+					occurrences += 1;
+			}
+			if (occurrences > 0)
+				hits.put(first.getKey(), occurrences);
+		}
+		return hits;
+	}
+
+	private static void count(HashMap<Integer,Integer> hits, Postings postings) {
+		for (int i=0; i<postings.size; i++) {
+			Integer current = hits.get(postings.docs[i]);
+			hits.put(postings.docs[i], (current == null ? 0 : current) + postings.counts[i]);
+		}
+	}
+
+	private static boolean contains(int[] sorted, int value) {
+		int low = 0, high = sorted.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (sorted[middle] < value)
+				low = middle + 1;
+			else if (sorted[middle] > value)
+				high = middle - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	// every posting for the token, from oldest segment to the buffer
+	private Postings lookup(String token) throws IOException {
+		Postings all = new Postings();
+		for (int s=0; s<segments.size(); s++) {
+			Segment segment = segments.get(s);
+			int t = segment.find(token);
+			if (t >= 0)
+				all.append(segment.postings(t));
+		}
+		Postings buffered = buffer.get(token);
+		if (buffered != null)
+			all.append(buffered);
+		return all;
+	}
+
+	private void merge() throws IOException {
+		TreeMap<String,Postings> merged = new TreeMap<String,Postings>();
+		for (int s=0; s<segments.size(); s++) {
+			Segment segment = segments.get(s);
+			for (int t=0; t<segment.terms.length; t++) {
+				Postings postings = merged.get(segment.terms[t]);
+				if (postings == null) {
+					postings = new Postings();
+					merged.put(segment.terms[t], postings);
+				}
+				postings.append(segment.postings(t));
+			}
+		}
+
+		int number = nextSegment++;
+		writeSegment(segmentFile(number), merged);
+		ArrayList<Segment> old = segments;
+		segments = new ArrayList<Segment>();
+		segments.add(new Segment(number, segmentFile(number), old.get(0).first, old.get(old.size() - 1).end));
+		writeMeta();
+
+		for (int s=0; s<old.size(); s++)
+			segmentFile(old.get(s).number).delete();
+	}
+
+	// postings first, then the dictionary (term, offset, length), then where the dictionary starts
+	private static void writeSegment(File file, TreeMap<String,Postings> terms) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			int[] offsets = new int[terms.size()];
+			int[] lengths = new int[terms.size()];
+			int t = 0;
+			Iterator<Postings> postings = terms.values().iterator();
+			while (postings.hasNext()) {
+				offsets[t] = out.size();
+				postings.next().write(out);
+				lengths[t] = out.size() - offsets[t];
+				t++;
+			}
+
+			int dictionary = out.size();
+			Binary.writeVarInt(out, terms.size());
+			Iterator<String> names = terms.keySet().iterator();
+			t = 0;
+			while (names.hasNext()) {
+				Binary.writeString(out, names.next());
+				Binary.writeVarInt(out, offsets[t]);
+				Binary.writeVarInt(out, lengths[t]);
+				t++;
+			}
+			out.writeInt(dictionary);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void readMeta() throws IOException {
+		File file = new File(directory, META_FILE);
+		if (!file.exists())
+			return;
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != FORMAT_VERSION)
+				return;
+			flushed = in.readLong();
+			indexed = flushed;
+			nextSegment = in.readInt();
+			int count = Binary.readVarInt(in);
+			for (int i=0; i<count; i++) {
+				int number = in.readInt();
+				long first = in.readLong();
+				segments.add(new Segment(number, segmentFile(number), first, in.readLong()));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeMeta() throws IOException {
+		File file = new File(directory, META_FILE);
+		File temp = new File(directory, META_FILE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(flushed);
+			out.writeInt(nextSegment);
+			Binary.writeVarInt(out, segments.size());
+			for (int i=0; i<segments.size(); i++) {
+				Segment segment = segments.get(i);
+				out.writeInt(segment.number);
+				out.writeLong(segment.first);
+				out.writeLong(segment.end);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace search index metadata.");
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, number + ".seg");
+	}
+
+	public static class Result {
+		public long ordinal;
+		public float score;
+
+		public Result(long ordinal, float score) {
+			this.ordinal = ordinal;
+			this.score = score;
+		}
+	}
+
+	// An immutable segment: its dictionary on the heap, its postings in a read-only mapping.
+	private static class Segment {
+		int number;
+		long first, end; // the documents it covers, from first up to (not including) end
+		String[] terms;
+		int[] offsets, lengths;
+		MappedByteBuffer data;
+
+		Segment(int number, File file, long first, long end) throws IOException {
+			this.number = number;
+			this.first = first;
+			this.end = end;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+
+			int dictionary = data.getInt(data.capacity() - 4);
+			ByteBuffer slice = data.duplicate();
+			slice.position(dictionary);
+			slice.limit(data.capacity() - 4);
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(slice));
+			int count = Binary.readVarInt(in);
+			terms = new String[count];
+			offsets = new int[count];
+			lengths = new int[count];
+			for (int i=0; i<count; i++) {
+				terms[i] = Binary.readString(in);
+				offsets[i] = Binary.readVarInt(in);
+				lengths[i] = Binary.readVarInt(in);
+			}
+		}
+
+		int find(String term) {
+			int low = 0, high = terms.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int compared = terms[middle].compareTo(term);
+				if (compared < 0)
+					low = middle + 1;
+				else if (compared > 0)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -1;
+		}
+
+		// index of the first term not less than the given one
+		int ceiling(String term) {
+			int low = 0, high = terms.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (terms[middle].compareTo(term) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		Postings postings(int t) throws IOException {
+			ByteBuffer slice = data.duplicate();
+			slice.position(offsets[t]);
+			slice.limit(offsets[t] + lengths[t]);
+			return Postings.read(new DataInputStream(new ByteBufferInputStream(slice)));
+		}
+	}
+
+	// Documents in increasing order, each with its word positions. Positions for all documents
+	// share one flat array, with starts[i] marking where document i's begin.
+	private static class Postings {
+		int size = 0;
+		int[] docs = new int[4];
+		int[] counts = new int[4];
+		int[] starts = new int[4];
+		int[] positions = new int[8];
+		int positionCount = 0;
+
+		void add(int doc, int position) {
+			if (size == 0 || docs[size - 1] != doc) {
+				ensureDocs(size + 1);
+				docs[size] = doc;
+				counts[size] = 0;
+				starts[size] = positionCount;
+				size += 1;
+			}
+			ensurePositions(positionCount + 1);
+			positions[positionCount++] = position;
+			counts[size - 1] += 1;
+		}
+
+		// postings for later documents than any already here
+		void append(Postings other) {
+			for (int i=0; i<other.size; i++) {
+				int start = other.starts[i];
+				for (int p=0; p<other.counts[i]; p++)
+					add(other.docs[i], other.positions[start + p]);
+			}
+		}
+
+		// the postings for documents before limit
+		Postings before(int limit) {
+			Postings kept = new Postings();
+			for (int i=0; i<size && docs[i] < limit; i++) {
+				int start = starts[i];
+				for (int p=0; p<counts[i]; p++)
+					kept.add(docs[i], positions[start + p]);
+			}
+			return kept;
+		}
+
+		long memoryUsage() {
+			return 4L * (docs.length * 3 + positions.length);
+		}
+
+		int[] positionsOf(int i) {
+			int[] result = new int[counts[i]];
+			System.arraycopy(positions, starts[i], result, 0, counts[i]);
+			return result;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			Binary.writeVarInt(out, size);
+			int previous = 0;
+			for (int i=0; i<size; i++) {
+				Binary.writeVarInt(out, docs[i] - previous);
+				previous = docs[i];
+				Binary.writeVarInt(out, counts[i]);
+				int last = 0;
+				for (int p=0; p<counts[i]; p++) {
+					int position = positions[starts[i] + p];
+					Binary.writeVarInt(out, position - last);
+					last = position;
+				}
+			}
+		}
+
+		static Postings read(DataInputStream in) throws IOException {
+			Postings postings = new Postings();
+			int size = Binary.readVarInt(in);
+			int doc = 0;
+			for (int i=0; i<size; i++) {
+				doc += Binary.readVarInt(in);
+				int count = Binary.readVarInt(in);
+				int position = 0;
+				for (int p=0; p<count; p++) {
+					position += Binary.readVarInt(in);
+					postings.add(doc, position);
+				}
+			}
+			return postings;
+		}
+
+		private void ensureDocs(int capacity) {
+			if (capacity <= docs.length)
+				return;
+			int grown = docs.length * 2;
+			int[] newDocs = new int[grown], newCounts = new int[grown], newStarts = new int[grown];
+			System.arraycopy(docs, 0, newDocs, 0, size);
+			System.arraycopy(counts, 0, newCounts, 0, size);
+			System.arraycopy(starts, 0, newStarts, 0, size);
+			docs = newDocs;
+			counts = newCounts;
+			starts = newStarts;
+		}
+
+		private void ensurePositions(int capacity) {
+			if (capacity <= positions.length)
+				return;
+			int[] grown = new int[positions.length * 2];
+			System.arraycopy(positions, 0, grown, 0, positionCount);
+			positions = grown;
+		}
+	}
+}
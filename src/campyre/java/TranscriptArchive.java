@@ -0,0 +1,506 @@
+package campyre.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Append-only archive of a room's transcript, meant to scale to millions of messages
+// without keeping them on the heap.
+//
+// Messages are written in order, length-prefixed in their binary encoding, to numbered
+// segment files that roll over at SEGMENT_SIZE. A sparse index holds one fixed-size entry
+// (ordinal, id, timestamp, segment, offset) for every INDEX_INTERVAL-th message and for the
+// first message of each segment. Reads find the nearest index entry, then walk forward through
+// a read-only memory mapping of the segment, so paging never reads more than it decodes.
+// Only the MAX_MAPPED most recently read segments stay mapped, so the address space used
+// doesn't grow with the archive; the rest are unmapped once they're collected.
+//
+// Messages missing from behind the tail (e.g. from while the app wasn't polling) are filled in
+// by rewriting the archive from the first of them on, as long as that's within MAX_REWRITE messages of the end.
+// Anything older than the first message archived is left out, so the archive never grows backwards.
+public class TranscriptArchive {
+	public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final int INDEX_INTERVAL = 64;
+	public static final int MAX_MAPPED = 8;
+	public static final int MAX_REWRITE = 5000;
+
+	private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4 + 4;
+	private static final String INDEX_FILE = "index";
+
+	private static HashMap<String,TranscriptArchive> open = new HashMap<String,TranscriptArchive>();
+
+	private File directory;
+
+	// the sparse index, in parallel arrays, as it is small and searched often
+	private long[] ordinals = new long[16];
+	private long[] ids = new long[16];
+	private long[] timestamps = new long[16];
+	private int[] segments = new int[16];
+	private int[] offsets = new int[16];
+	private int indexSize = 0;
+
+	private long count = 0;
+	private long lastId = -1;
+	private int tailSegment = 0;
+	private int tailLength = 0;
+
+	// access-ordered, so the least recently read segment is the one dropped
+	private LinkedHashMap<Integer,MappedByteBuffer> mapped = new LinkedHashMap<Integer,MappedByteBuffer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer,MappedByteBuffer> eldest) {
+			return size() > MAX_MAPPED;
+		}
+	};
+
+	private TranscriptArchive(File directory) throws IOException {
+		this.directory = directory;
+		directory.mkdirs();
+		recover();
+	}
+
+	// one instance per directory, so that appends and reads in the same process share the index
+	public static TranscriptArchive open(File directory) throws CampfireException {
+		synchronized (open) {
+			String key = directory.getAbsolutePath();
+			TranscriptArchive archive = open.get(key);
+			if (archive == null) {
+				try {
+					archive = new TranscriptArchive(directory);
+				} catch (IOException e) {
+					throw new CampfireException(e, "Couldn't open the transcript archive.");
+				}
+				open.put(key, archive);
+			}
+			return archive;
+		}
+	}
+
+	// Forgets every open archive, e.g. on logging out, before their directories are deleted.
+	public static void closeAll() {
+		synchronized (open) {
+			open.clear();
+		}
+	}
+
+	public synchronized long size() {
+		return count;
+	}
+
+	// the id of the newest archived message, or null if the archive is empty
+	public synchronized String lastId() {
+		return lastId < 0 ? null : String.valueOf(lastId);
+	}
+
+	// Appends messages newer than anything already archived, in the order given.
+	// Older or duplicate messages, and ones without a numeric id (e.g. artificial ones), are skipped.
+	public synchronized int append(List<Message> messages) throws CampfireException {
+		int appended = 0;
+		try {
+			RandomAccessFile tail = new RandomAccessFile(segmentFile(tailSegment), "rw");
+			RandomAccessFile index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+			try {
+				tail.seek(tailLength);
+				index.seek((long) indexSize * INDEX_ENTRY_SIZE);
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream encoder = new DataOutputStream(bytes);
+
+				int length = messages.size();
+				for (int i=0; i<length; i++) {
+					Message message = messages.get(i);
+					long id = numericId(message.id);
+					if (id <= lastId)
+						continue;
+
+					bytes.reset();
+					message.write(encoder);
+					encoder.flush();
+					int recordSize = 4 + bytes.size();
+
+					if (tailLength > 0 && (tailLength + recordSize) > SEGMENT_SIZE) {
+						tail.close();
+						mapped.remove(tailSegment);
+						tailSegment += 1;
+						tailLength = 0;
+						tail = new RandomAccessFile(segmentFile(tailSegment), "rw");
+					}
+
+					if (tailLength == 0 || (count % INDEX_INTERVAL) == 0) {
+						long timestamp = message.timestamp == null ? 0 : message.timestamp.getTime();
+						addIndexEntry(count, id, timestamp, tailSegment, tailLength);
+						index.writeLong(count);
+						index.writeLong(id);
+						index.writeLong(timestamp);
+						index.writeInt(tailSegment);
+						index.writeInt(tailLength);
+					}
+
+					tail.writeInt(bytes.size());
+					tail.write(bytes.toByteArray());
+
+					tailLength += recordSize;
+					count += 1;
+					lastId = id;
+					appended += 1;
+				}
+			} finally {
+				tail.close();
+				index.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't write to the transcript archive.");
+		}
+
+		// the tail segment grew, so any mapping of it is out of date
+		if (appended > 0)
+			mapped.remove(tailSegment);
+		return appended;
+	}
+
+	// Merges in messages (in any order) that belong in a gap behind the tail, such as a day's transcript
+	// covering one, by cutting the archive off at the first of them and appending everything from there
+	// again in id order. Anything newer than the tail is appended as usual. Messages older than the archive's
+	// first one are no gap, and are skipped, as are those that would mean rewriting more than MAX_REWRITE
+	// archived ones. Returns the ordinal the archive changed from, or -1 if nothing was added.
+	// A crash part way through loses the rewritten messages, until they're filled in again.
+	public synchronized long fill(List<Message> messages) throws CampfireException {
+		long floor = firstIdFrom(count > MAX_REWRITE ? count - MAX_REWRITE : 0);
+		TreeMap<Long,Message> missing = new TreeMap<Long,Message>();
+		for (int i=0; i<messages.size(); i++) {
+			Message message = messages.get(i);
+			long id = numericId(message.id);
+			if (id >= 0 && id > floor)
+				missing.put(id, message);
+		}
+		if (missing.isEmpty())
+			return -1;
+
+		// only what's archived alongside them is read to see if they're really missing, which they usually aren't
+		if (missing.firstKey() <= lastId) {
+			long from = ordinalOf(String.valueOf(missing.firstKey()));
+			long to = ordinalOf(String.valueOf(Math.min(missing.lastKey(), lastId)));
+			ArrayList<Message> archived = read(from, (int) (Math.min(to + 1, count) - from));
+			for (int i=0; i<archived.size(); i++)
+				missing.remove(numericId(archived.get(i).id));
+			if (missing.isEmpty())
+				return -1;
+		}
+
+		// nothing behind the tail
+		if (missing.firstKey() > lastId) {
+			long end = count;
+			append(new ArrayList<Message>(missing.values()));
+			return end;
+		}
+
+		long from = ordinalOf(String.valueOf(missing.firstKey()));
+		ArrayList<Message> tail = read(from, (int) (count - from));
+		for (int i=0; i<tail.size(); i++)
+			missing.put(numericId(tail.get(i).id), tail.get(i));
+		truncate(from);
+		append(new ArrayList<Message>(missing.values()));
+		return from;
+	}
+
+	// up to max messages, starting from the ordinal-th message ever archived (0 being the oldest)
+	public synchronized ArrayList<Message> read(long ordinal, int max) throws CampfireException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		if (ordinal < 0 || ordinal >= count || max <= 0)
+			return messages;
+
+		int entry = floorByOrdinal(ordinal);
+		long current = ordinals[entry];
+		int segment = segments[entry];
+		int offset = offsets[entry];
+
+		try {
+			ByteBuffer buffer = map(segment);
+			while (messages.size() < max && current < count) {
+				if (offset >= limitOf(segment, buffer)) {
+					segment += 1;
+					offset = 0;
+					buffer = map(segment);
+				}
+
+				int length = buffer.getInt(offset);
+				if (current >= ordinal) {
+					ByteBuffer record = buffer.duplicate();
+					record.position(offset + 4);
+					record.limit(offset + 4 + length);
+					messages.add(Message.read(new DataInputStream(new ByteBufferInputStream(record))));
+				}
+
+				offset += 4 + length;
+				current += 1;
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't read from the transcript archive.");
+		}
+
+		return messages;
+	}
+
+	// the last max messages in the archive
+	public synchronized ArrayList<Message> tail(int max) throws CampfireException {
+		return read(Math.max(0, count - max), max);
+	}
+
+	// The ordinal of the first archived message with an id at or after the given one
+	// (which equals size() if there is none), for paging from a known message.
+	public synchronized long ordinalOf(String id) throws CampfireException {
+		long target = numericId(id);
+		if (indexSize == 0 || target > lastId)
+			return count;
+
+		int entry = 0;
+		for (int low = 0, high = indexSize - 1; low <= high;) {
+			int middle = (low + high) >>> 1;
+			if (ids[middle] <= target) {
+				entry = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+
+		long ordinal = ordinals[entry];
+		long end = (entry + 1) < indexSize ? ordinals[entry + 1] : count;
+		ArrayList<Message> page = read(ordinal, (int) (end - ordinal));
+		for (int i=0; i<page.size(); i++) {
+			if (numericId(page.get(i).id) >= target)
+				return ordinal + i;
+		}
+		return end;
+	}
+
+	// An ordinal to start reading from to find messages at or after the given time, e.g. the start of a day.
+	// This is only as precise as the index, so callers should skip anything still earlier than the date.
+	public synchronized long ordinalAt(Date date) {
+		long target = date.getTime();
+		int entry = 0;
+		for (int low = 0, high = indexSize - 1; low <= high;) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] < target) {
+				entry = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		return indexSize == 0 ? 0 : ordinals[entry];
+	}
+
+	private int floorByOrdinal(long ordinal) {
+		int entry = 0;
+		for (int low = 0, high = indexSize - 1; low <= high;) {
+			int middle = (low + high) >>> 1;
+			if (ordinals[middle] <= ordinal) {
+				entry = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		return entry;
+	}
+
+	private int limitOf(int segment, ByteBuffer buffer) {
+		return segment == tailSegment ? tailLength : buffer.capacity();
+	}
+
+	private long firstIdFrom(long ordinal) throws CampfireException {
+		ArrayList<Message> one = read(ordinal, 1);
+		return one.isEmpty() ? -1 : numericId(one.get(0).id);
+	}
+
+	// Cuts the archive off before the given ordinal: the segment it's in is truncated there,
+	// later segments are deleted, and the index is cut back to match.
+	private void truncate(long ordinal) throws CampfireException {
+		int entry = floorByOrdinal(ordinal);
+		long current = ordinals[entry];
+		int segment = segments[entry];
+		int offset = offsets[entry];
+		long newLastId = ordinal > 0 ? firstIdFrom(ordinal - 1) : -1;
+
+		try {
+			while (current < ordinal) {
+				ByteBuffer buffer = map(segment);
+				if (offset >= limitOf(segment, buffer)) {
+					segment += 1;
+					offset = 0;
+					continue;
+				}
+				offset += 4 + buffer.getInt(offset);
+				current += 1;
+			}
+			// the cut falls at the end of a full segment, so the next one starts empty
+			if (segment < tailSegment && offset >= limitOf(segment, map(segment))) {
+				segment += 1;
+				offset = 0;
+			}
+
+			for (int s=segment+1; s<=tailSegment; s++)
+				segmentFile(s).delete();
+			RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+			try {
+				file.setLength(offset);
+			} finally {
+				file.close();
+			}
+
+			while (indexSize > 0 && ordinals[indexSize - 1] >= ordinal)
+				indexSize -= 1;
+			RandomAccessFile index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+			try {
+				index.setLength((long) indexSize * INDEX_ENTRY_SIZE);
+			} finally {
+				index.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't rewrite the transcript archive.");
+		}
+
+		mapped.clear();
+		tailSegment = segment;
+		tailLength = offset;
+		count = ordinal;
+		lastId = newLastId;
+	}
+
+	private MappedByteBuffer map(int segment) throws IOException {
+		MappedByteBuffer buffer = mapped.get(segment);
+		if (buffer == null) {
+			RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r");
+			try {
+				long length = segment == tailSegment ? tailLength : file.length();
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} finally {
+				file.close(); // the mapping stays valid after the file is closed
+			}
+			mapped.put(segment, buffer);
+		}
+		return buffer;
+	}
+
+	// Loads the index, then walks forward from its last entry to count the messages after it,
+	// re-indexing anything the index missed and cutting off a record left half-written by a crash.
+	private void recover() throws IOException {
+		File indexFile = new File(directory, INDEX_FILE);
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		try {
+			int entries = (int) (index.length() / INDEX_ENTRY_SIZE);
+			for (int i=0; i<entries; i++)
+				addIndexEntry(index.readLong(), index.readLong(), index.readLong(), index.readInt(), index.readInt());
+
+			int segment = 0, offset = 0;
+			long ordinal = 0;
+			if (indexSize > 0) {
+				segment = segments[indexSize - 1];
+				offset = offsets[indexSize - 1];
+				ordinal = ordinals[indexSize - 1];
+			}
+
+			while (segmentFile(segment).exists()) {
+				RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+				try {
+					long length = file.length();
+					while (offset + 4 <= length) {
+						file.seek(offset);
+						int recordLength = file.readInt();
+						if (recordLength < 0 || offset + 4 + recordLength > length)
+							break;
+
+						byte[] record = new byte[recordLength];
+						file.readFully(record);
+						Message message = Message.read(new DataInputStream(new ByteBufferInputStream(ByteBuffer.wrap(record))));
+						long id = numericId(message.id);
+						boolean indexed = indexSize > 0 && ordinals[indexSize - 1] >= ordinal;
+						if (!indexed && (offset == 0 || (ordinal % INDEX_INTERVAL) == 0))
+							addIndexEntry(ordinal, id, message.timestamp == null ? 0 : message.timestamp.getTime(), segment, offset);
+
+						lastId = id;
+						offset += 4 + recordLength;
+						ordinal += 1;
+					}
+
+					if (offset < length)
+						file.setLength(offset);
+				} finally {
+					file.close();
+				}
+
+				tailSegment = segment;
+				tailLength = offset;
+				segment += 1;
+				offset = 0;
+			}
+			count = ordinal;
+
+			// rewrite the index to match what was recovered
+			index.setLength(0);
+			for (int i=0; i<indexSize; i++) {
+				index.writeLong(ordinals[i]);
+				index.writeLong(ids[i]);
+				index.writeLong(timestamps[i]);
+				index.writeInt(segments[i]);
+				index.writeInt(offsets[i]);
+			}
+		} finally {
+			index.close();
+		}
+	}
+
+	private void addIndexEntry(long ordinal, long id, long timestamp, int segment, int offset) {
+		if (indexSize == ordinals.length) {
+			int capacity = indexSize * 2;
+			ordinals = grow(ordinals, capacity);
+			ids = grow(ids, capacity);
+			timestamps = grow(timestamps, capacity);
+			int[] newSegments = new int[capacity];
+			System.arraycopy(segments, 0, newSegments, 0, indexSize);
+			segments = newSegments;
+			int[] newOffsets = new int[capacity];
+			System.arraycopy(offsets, 0, newOffsets, 0, indexSize);
+			offsets = newOffsets;
+		}
+		ordinals[indexSize] = ordinal;
+		ids[indexSize] = id;
+		timestamps[indexSize] = timestamp;
+		segments[indexSize] = segment;
+		offsets[indexSize] = offset;
+		indexSize += 1;
+	}
+
+	private static long[] grow(long[] array, int capacity) {
+		long[] grown = new long[capacity];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, segment + ".log");
+	}
+
+	// -1 for ids that aren't numeric (e.g. artificial ones), so they sort before everything
+	static long numericId(String id) {
+		if (id == null)
+			return -1;
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
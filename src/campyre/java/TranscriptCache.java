@@ -0,0 +1,308 @@
+package campyre.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Per-day cache of a room's transcripts, on disk and (for the last few days looked at) in memory.
+//
+// A day fetched after it ended can't change any more, so it's kept forever and never fetched again.
+// A day still in progress (today) is topped up with only the messages newer than the last one cached.
+// Campfire ends its days in the account's time zone, which isn't known here, so days are only
+// taken to have ended COMPLETE_MARGIN after they did on this device: far enough for any two zones.
+// Neighbouring days can be prefetched in the background, so paging between days is instant.
+public class TranscriptCache implements Trimmable {
+	public static final int MEMORY_DAYS = 7;
+
+	// how many messages to ask for when topping up today; more than this and the whole day is re-fetched
+	public static final int TOP_UP_LIMIT = 100;
+
+	// in milliseconds, the furthest apart two time zones' clocks can be (UTC-12 to UTC+14)
+	public static final long COMPLETE_MARGIN = 26L * 60 * 60 * 1000;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static HashMap<String,TranscriptCache> open = new HashMap<String,TranscriptCache>();
+	private static ExecutorService prefetcher = null;
+
+	private File directory;
+	private LinkedHashMap<String,Day> days;
+	private HashSet<String> prefetching = new HashSet<String>();
+
+	private TranscriptCache(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+
+		this.days = new LinkedHashMap<String,Day>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Day> eldest) {
+				return size() > MEMORY_DAYS;
+			}
+		};
+	}
+
+	// Forgets every open cache, e.g. on logging out, before their directories are deleted.
+	public static void closeAll() {
+		synchronized (open) {
+			Iterator<TranscriptCache> all = open.values().iterator();
+			while (all.hasNext())
+				MemoryBudget.shared().unregister(all.next());
+			open.clear();
+		}
+	}
+
+	public static TranscriptCache open(File directory) {
+		synchronized (open) {
+			String key = directory.getAbsolutePath();
+			TranscriptCache cache = open.get(key);
+			if (cache == null) {
+				cache = new TranscriptCache(directory);
+				open.put(key, cache);
+				MemoryBudget.shared().register("transcript days", cache, MemoryBudget.PRIORITY_LOW);
+			}
+			return cache;
+		}
+	}
+
+	private static synchronized ExecutorService prefetcher() {
+		if (prefetcher == null) {
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "campyre-transcripts");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return prefetcher;
+	}
+
+	// midnight at the start of the day the date falls on
+	public static Date startOf(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	// the start of the day the given number of days away (negative for earlier)
+	public static Date addDays(Date day, int days) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(startOf(day));
+		calendar.add(Calendar.DAY_OF_MONTH, days);
+		return calendar.getTime();
+	}
+
+	public static boolean isToday(Date day) {
+		return startOf(day).equals(startOf(new Date()));
+	}
+
+	// Whatever is cached for the day, complete or not, without touching the network.
+	// Returns null if nothing is.
+	public ArrayList<Message> cached(Date day) throws CampfireException {
+		Day cached = lookup(keyFor(day));
+		return cached == null ? null : new ArrayList<Message>(cached.messages);
+	}
+
+	// The day's whole transcript, fetching from Campfire only what the cache can't vouch for.
+	public ArrayList<Message> load(Room room, Date day) throws CampfireException {
+		day = startOf(day);
+		String key = keyFor(day);
+		Date end = addDays(day, 1);
+		long now = System.currentTimeMillis();
+
+		if (day.getTime() > now)
+			return new ArrayList<Message>();
+
+		Day cached = lookup(key);
+		if (cached != null && cached.fetched >= (end.getTime() + COMPLETE_MARGIN))
+			return new ArrayList<Message>(cached.messages);
+
+		// Topping up goes by this device's day, which may not line up with Campfire's, so it's
+		// only a stopgap: once the day's over here, it's fetched whole until it's surely complete.
+		Day fresh = null;
+		if (cached != null && end.getTime() > now && !cached.messages.isEmpty())
+			fresh = topUp(room, cached, day, end, now);
+		if (fresh == null)
+			fresh = new Day(Message.allOn(room, day), now);
+
+		store(key, fresh);
+		return new ArrayList<Message>(fresh.messages);
+	}
+
+	// Loads the days either side of the given one in the background, if they aren't already cached.
+	// Failures are ignored, the day will just be fetched when it's asked for.
+	public void prefetch(final Room room, Date day) {
+		Date[] neighbours = new Date[] {addDays(day, -1), addDays(day, 1)};
+		for (int i=0; i<neighbours.length; i++) {
+			final Date neighbour = neighbours[i];
+			final String key = keyFor(neighbour);
+			if (neighbour.getTime() > System.currentTimeMillis())
+				continue;
+
+			synchronized (this) {
+				if (days.containsKey(key) || prefetching.contains(key))
+					continue;
+				prefetching.add(key);
+			}
+
+			prefetcher().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(room, neighbour);
+					} catch (CampfireException e) {
+						// it'll be fetched in the foreground if it's wanted
+					} finally {
+						synchronized (TranscriptCache.this) {
+							prefetching.remove(key);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public synchronized long memoryUsage() {
+		long total = 0;
+		Iterator<Day> cached = days.values().iterator();
+		while (cached.hasNext())
+			total += MemoryBudget.estimate(cached.next().messages);
+		return total;
+	}
+
+	// every day is also on disk, so they can all go
+	@Override
+	public synchronized void trim(int level) {
+		days.clear();
+	}
+
+	public synchronized void clear() {
+		days.clear();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; i++)
+				files[i].delete();
+		}
+	}
+
+	// Today's cached messages plus whatever's newer, or null if there's so much newer that a full fetch is simpler.
+	private Day topUp(Room room, Day cached, Date day, Date end, long now) throws CampfireException {
+		String lastId = cached.messages.get(cached.messages.size() - 1).id;
+		ArrayList<Message> newer = Message.recent(room, TOP_UP_LIMIT, lastId);
+		if (newer.size() >= TOP_UP_LIMIT)
+			return null;
+
+		ArrayList<Message> messages = new ArrayList<Message>(cached.messages);
+		for (int i=0; i<newer.size(); i++) {
+			Message message = newer.get(i);
+			if (message.timestamp == null || (!message.timestamp.before(day) && message.timestamp.before(end)))
+				messages.add(message);
+		}
+		return new Day(messages, now);
+	}
+
+	private synchronized Day lookup(String key) throws CampfireException {
+		Day day = days.get(key);
+		if (day == null) {
+			day = read(fileFor(key));
+			if (day != null)
+				days.put(key, day);
+		}
+		return day;
+	}
+
+	private synchronized void store(String key, Day day) throws CampfireException {
+		days.put(key, day);
+		write(fileFor(key), day);
+	}
+
+	private static Day read(File file) throws CampfireException {
+		if (!file.exists())
+			return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FORMAT_VERSION)
+					return null;
+				long fetched = in.readLong();
+				int length = Binary.readVarInt(in);
+				ArrayList<Message> messages = new ArrayList<Message>(length);
+				for (int i=0; i<length; i++)
+					messages.add(Message.read(in));
+				return new Day(messages, fetched);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't read a cached transcript.");
+		}
+	}
+
+	private static void write(File file, Day day) throws CampfireException {
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(day.fetched);
+				Binary.writeVarInt(out, day.messages.size());
+				for (int i=0; i<day.messages.size(); i++)
+					day.messages.get(i).write(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new CampfireException(e, "Couldn't cache a transcript.");
+		}
+
+		if (!temp.renameTo(file))
+			throw new CampfireException("Couldn't cache a transcript.");
+	}
+
+	private static String keyFor(Date day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(day);
+		return calendar.get(Calendar.YEAR) + "-" + (calendar.get(Calendar.MONTH) + 1) + "-" + calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
+	private File fileFor(String key) {
+		return new File(directory, key + ".day");
+	}
+
+	private static class Day {
+		List<Message> messages;
+		long fetched; // when it was last fetched, so a day fetched long enough after it ended is complete
+
+		Day(List<Message> messages, long fetched) {
+			this.messages = messages;
+			this.fetched = fetched;
+		}
+	}
+}
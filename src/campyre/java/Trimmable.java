@@ -0,0 +1,12 @@
+package campyre.java;
+
+// An in-memory cache that can report roughly how big it is, and give memory back when asked.
+// See MemoryBudget.
+public interface Trimmable {
+	// a rough estimate, in bytes, of what the cache is holding on to
+	long memoryUsage();
+
+	// Frees what the cache can spare at the given level (one of MemoryBudget's TRIM_ levels).
+	// The higher the level, the more should go.
+	void trim(int level);
+}
@@ -0,0 +1,227 @@
+package campyre.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+// How many messages each room has that the user hasn't read, kept up to date as messages arrive
+// rather than worked out again: each room remembers the last message read and the newest message
+// counted so far, so only messages newer than that are ever fetched or counted.
+//
+// Anything that sees a room's new messages (the open room's poller, the background watcher,
+// a sync of the room list) passes them on through arrived(), in any order and as often as it likes,
+// since a message is only counted once. Whatever shows a room marks it read.
+public class UnreadCounts {
+	// counts stop here, and are shown as "at least this many"
+	public static final int MAX_COUNT = 99;
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	public interface Listener {
+		// called on whichever thread changed the count
+		void onUnreadChanged(String roomId, int count);
+	}
+
+	private static UnreadCounts shared = null;
+
+	private HashMap<String,Entry> entries = new HashMap<String,Entry>();
+	private boolean dirty = false;
+	private Listener listener = null;
+
+	public static synchronized UnreadCounts shared() {
+		if (shared == null)
+			shared = new UnreadCounts();
+		return shared;
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// unless another has taken over since
+	public synchronized void removeListener(Listener listener) {
+		if (this.listener == listener)
+			this.listener = null;
+	}
+
+	public synchronized int count(String roomId) {
+		Entry entry = entries.get(roomId);
+		return entry == null ? 0 : entry.count;
+	}
+
+	// the newest message accounted for, so only what's after it needs fetching (null if the room hasn't been seen)
+	public synchronized String lastSeenId(String roomId) {
+		Entry entry = entries.get(roomId);
+		return entry == null ? null : entry.lastSeenId;
+	}
+
+	public synchronized String lastReadId(String roomId) {
+		Entry entry = entries.get(roomId);
+		return entry == null ? null : entry.lastReadId;
+	}
+
+	// The user has seen everything up to and including the given message.
+	public void read(String roomId, String lastMessageId) {
+		if (lastMessageId == null)
+			return;
+
+		Listener listener;
+		synchronized (this) {
+			Entry entry = entry(roomId);
+			if (entry.lastReadId != null && !newer(lastMessageId, entry.lastReadId))
+				return;
+			entry.lastReadId = lastMessageId;
+			if (newer(lastMessageId, entry.lastSeenId))
+				entry.lastSeenId = lastMessageId;
+			dirty = true;
+
+			// anything seen beyond what was read can't be told apart any more, so it's counted as read too
+			if (entry.count == 0)
+				return;
+			entry.count = 0;
+			listener = this.listener;
+		}
+		if (listener != null)
+			listener.onUnreadChanged(roomId, 0);
+	}
+
+	// Counts the messages (oldest first) that are newer than any already counted. A room seen for the
+	// first time starts from its newest message, with nothing unread. Messages the user sent themselves
+	// mean they've read the room up to there. Returns whether the count changed.
+	public boolean arrived(String roomId, String userId, List<Message> messages) {
+		if (messages.isEmpty())
+			return false;
+
+		Listener listener;
+		int count;
+		synchronized (this) {
+			Entry entry = entries.get(roomId);
+			if (entry == null || entry.lastSeenId == null) {
+				entry = entry(roomId);
+				entry.lastReadId = entry.lastSeenId = messages.get(messages.size() - 1).id;
+				dirty = true;
+				return false;
+			}
+
+			int before = entry.count;
+			for (int i=0; i<messages.size(); i++) {
+				Message message = messages.get(i);
+				if (!newer(message.id, entry.lastSeenId))
+					continue;
+				entry.lastSeenId = message.id;
+
+				if (userId != null && userId.equals(message.user_id)) {
+					entry.lastReadId = message.id;
+					entry.count = 0;
+				} else if (counted(message))
+					entry.count = Math.min(entry.count + 1, MAX_COUNT);
+			}
+			dirty = true;
+
+			if (entry.count == before)
+				return false;
+			count = entry.count;
+			listener = this.listener;
+		}
+		if (listener != null)
+			listener.onUnreadChanged(roomId, count);
+		return true;
+	}
+
+	// only what people said, not comings and goings or timestamps
+	private static boolean counted(Message message) {
+		return message.type == Message.Type.TEXT || message.type == Message.Type.PASTE
+			|| message.type == Message.Type.IMAGE || message.type == Message.Type.TOPIC;
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		dirty = true;
+	}
+
+	// Snapshot format: version, the subdomain the rooms belong to, then (room id, last read id, last seen id, count) for each room.
+	public synchronized void save(File file, Campfire campfire) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(SNAPSHOT_VERSION);
+			Binary.writeString(out, campfire.subdomain);
+			Binary.writeVarInt(out, entries.size());
+			Iterator<String> ids = entries.keySet().iterator();
+			while (ids.hasNext()) {
+				String id = ids.next();
+				Entry entry = entries.get(id);
+				Binary.writeString(out, id);
+				Binary.writeString(out, entry.lastReadId);
+				Binary.writeString(out, entry.lastSeenId);
+				Binary.writeVarInt(out, entry.count);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace unread counts snapshot.");
+		dirty = false;
+	}
+
+	// Merges a snapshot in. Snapshots from another Campfire are ignored, and rooms already
+	// in memory are newer than anything on disk, and win.
+	public synchronized void load(File file, Campfire campfire) throws IOException {
+		if (!file.exists())
+			return;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_VERSION)
+				return;
+			String subdomain = Binary.readString(in);
+			if (subdomain == null || !subdomain.equals(campfire.subdomain))
+				return;
+
+			int length = Binary.readVarInt(in);
+			for (int i=0; i<length; i++) {
+				String id = Binary.readString(in);
+				Entry entry = new Entry();
+				entry.lastReadId = Binary.readString(in);
+				entry.lastSeenId = Binary.readString(in);
+				entry.count = Binary.readVarInt(in);
+				if (!entries.containsKey(id))
+					entries.put(id, entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private Entry entry(String roomId) {
+		Entry entry = entries.get(roomId);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(roomId, entry);
+		}
+		return entry;
+	}
+
+	// whether id comes after other (anything comes after nothing)
+	private static boolean newer(String id, String other) {
+		return other == null || TranscriptArchive.numericId(id) > TranscriptArchive.numericId(other);
+	}
+
+	private static class Entry {
+		String lastReadId = null, lastSeenId = null;
+		int count = 0;
+	}
+}
@@ -1,16 +1,24 @@
 package campyre.java;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class User implements Serializable {
+public class User implements Externalizable {
 	private static final long serialVersionUID = 1L;
 	
 	public String id, name, email;
 	public Campfire campfire;
 	
+	// only for Externalizable
+	public User() {}
+
 	public User(Campfire campfire, JSONObject json) throws JSONException {
 		this.campfire = campfire;
 		this.id = json.getString("id");
@@ -26,6 +34,40 @@ public class User implements Serializable {
 		}
 	}
 	
+	// writes everything but the Campfire, which the container (e.g. a Room) is expected to write once
+	public void write(DataOutput out) throws IOException {
+		Binary.writeString(out, id);
+		Binary.writeString(out, name);
+		Binary.writeString(out, email);
+	}
+
+	public static User read(Campfire campfire, DataInput in) throws IOException {
+		User user = new User();
+		user.campfire = campfire;
+		user.readFields(in);
+		return user;
+	}
+
+	private void readFields(DataInput in) throws IOException {
+		id = Binary.readString(in);
+		name = Binary.readString(in);
+		email = Binary.readString(in);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeBoolean(campfire != null);
+		if (campfire != null)
+			campfire.write(out);
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		campfire = in.readBoolean() ? Campfire.read(in) : null;
+		readFields(in);
+	}
+
 	public String displayName() {
 		if (name == null) return "(No name)";
 		
@@ -0,0 +1,335 @@
+package campyre.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Process-wide directory of Users, shared by every room and transcript.
+// Bounded in size (least recently used entries are dropped first), entries older than the TTL
+// are re-fetched on next use, and the whole thing can be snapshotted to disk between runs.
+public class UserCache implements Trimmable {
+	public static final int DEFAULT_CAPACITY = 500;
+	public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000; // one day, in milliseconds
+
+	// how many users can be fetched from Campfire at once
+	public static final int FAN_OUT = 4;
+
+	// shown for speakers who haven't been loaded yet
+	public static final String PLACEHOLDER_NAME = "...";
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	// rough size of a cached user, for the memory budget
+	private static final int ENTRY_SIZE = 256;
+
+	private static UserCache shared = null;
+	private static ExecutorService fetcher = null;
+
+	private final int capacity;
+	private final long ttl;
+	private final LinkedHashMap<String,Entry> entries;
+	private boolean dirty = false;
+
+	public UserCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+
+		// access-ordered, so iteration order runs from least to most recently used
+		this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+				return size() > UserCache.this.capacity;
+			}
+		};
+	}
+
+	public static synchronized UserCache shared() {
+		if (shared == null)
+			shared = new UserCache(DEFAULT_CAPACITY, DEFAULT_TTL);
+		return shared;
+	}
+
+	private static synchronized ExecutorService fetcher() {
+		if (fetcher == null) {
+			fetcher = Executors.newFixedThreadPool(FAN_OUT, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "campyre-users");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return fetcher;
+	}
+
+	// the cached user, fresh or not, or null if we've never seen them
+	public synchronized User get(String id) {
+		Entry entry = entries.get(id);
+		return entry == null ? null : entry.user;
+	}
+
+	public synchronized boolean isFresh(String id) {
+		Entry entry = entries.get(id);
+		return entry != null && !entry.expired(System.currentTimeMillis(), ttl);
+	}
+
+	public synchronized void put(User user) {
+		entries.put(user.id, new Entry(user, System.currentTimeMillis()));
+		dirty = true;
+	}
+
+	public synchronized void putAll(List<User> users) {
+		long now = System.currentTimeMillis();
+		int length = users.size();
+		for (int i=0; i<length; i++) {
+			User user = users.get(i);
+			entries.put(user.id, new Entry(user, now));
+		}
+		if (length > 0)
+			dirty = true;
+	}
+
+	// Returns the cached user if still fresh, otherwise asks Campfire.
+	// If Campfire can't be reached but we have a stale copy, the stale copy is good enough.
+	public User find(Campfire campfire, String id) throws CampfireException {
+		User cached;
+		synchronized (this) {
+			cached = get(id);
+			if (cached != null && isFresh(id))
+				return cached;
+		}
+
+		try {
+			User user = User.find(campfire, id);
+			put(user);
+			return user;
+		} catch (CampfireException e) {
+			if (cached != null)
+				return cached;
+			throw e;
+		}
+	}
+
+	// Sets message.person on every message whose speaker is cached, and a placeholder on the rest.
+	// Returns the distinct ids of speakers that still need fetching (unknown, or known but stale).
+	public synchronized Set<String> fillKnown(List<Message> messages) {
+		LinkedHashSet<String> missing = new LinkedHashSet<String>();
+		long now = System.currentTimeMillis();
+		int length = messages.size();
+		for (int i=0; i<length; i++) {
+			Message message = messages.get(i);
+			if (message.user_id == null)
+				continue;
+
+			Entry entry = entries.get(message.user_id);
+			if (entry != null)
+				message.person = entry.user.displayName();
+			else
+				message.person = PLACEHOLDER_NAME;
+
+			if (entry == null || entry.expired(now, ttl))
+				missing.add(message.user_id);
+		}
+		return missing;
+	}
+
+	// Fetches the given users concurrently, at most FAN_OUT at a time, and caches them.
+	// Everything is given a chance to finish, then the first failure (if any) is thrown.
+	public void fetchAll(final Campfire campfire, Collection<String> ids) throws CampfireException {
+		ArrayList<Future<User>> results = new ArrayList<Future<User>>(ids.size());
+		Iterator<String> iterator = ids.iterator();
+		while (iterator.hasNext()) {
+			final String id = iterator.next();
+			results.add(fetcher().submit(new Callable<User>() {
+				@Override
+				public User call() throws CampfireException {
+					return find(campfire, id);
+				}
+			}));
+		}
+
+		CampfireException failure = null;
+		int length = results.size();
+		for (int i=0; i<length; i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					if (e.getCause() instanceof CampfireException)
+						failure = (CampfireException) e.getCause();
+					else
+						failure = new CampfireException(e, "Problem loading user details.");
+				}
+			} catch (InterruptedException e) {
+				throw new CampfireException(e, "Interrupted while loading user details.");
+			}
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	// Fills in message.person for every message with a speaker, fetching each unknown speaker only once.
+	public void fillPeople(Campfire campfire, List<Message> messages) throws CampfireException {
+		Set<String> missing = fillKnown(messages);
+		if (!missing.isEmpty()) {
+			fetchAll(campfire, missing);
+			fillKnown(messages);
+		}
+	}
+
+	// Fetches the rosters of the given rooms and caches everyone in them, a batch of rooms at a time,
+	// so the cache is only locked once per batch. Rooms that fail to load are skipped.
+	// Returns the number of users cached.
+	public int warm(Campfire campfire, List<String> roomIds, int batchSize) {
+		int count = 0;
+		ArrayList<User> batch = new ArrayList<User>();
+		int length = roomIds.size();
+		for (int i=0; i<length; i++) {
+			try {
+				Room room = Room.find(campfire, roomIds.get(i));
+				if (room.initialUsers != null)
+					batch.addAll(room.initialUsers);
+			} catch (CampfireException e) {
+				// not worth failing the whole warm-up over
+			}
+
+			if (((i + 1) % batchSize) == 0 || i == (length - 1)) {
+				putAll(batch);
+				count += batch.size();
+				batch.clear();
+			}
+		}
+		return count;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	// Drops the least recently used users, down to the given number. This isn't a change
+	// worth saving, as the users are still good, just not in memory.
+	public synchronized void trimTo(int size) {
+		Iterator<String> ids = entries.keySet().iterator();
+		while (entries.size() > size && ids.hasNext()) {
+			ids.next();
+			ids.remove();
+		}
+	}
+
+	@Override
+	public synchronized long memoryUsage() {
+		return (long) entries.size() * ENTRY_SIZE;
+	}
+
+	// Users are looked up on every poll and are slow to fetch one by one, so only half go at first.
+	@Override
+	public void trim(int level) {
+		if (level >= MemoryBudget.TRIM_COMPLETE)
+			trimTo(0);
+		else
+			trimTo(size() / 2);
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		dirty = true;
+	}
+
+	// Snapshot format: version, the subdomain the users belong to, then (fetched time, user) pairs
+	// from least to most recently used, so that loading them back preserves LRU order.
+	public synchronized void save(File file, Campfire campfire) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(SNAPSHOT_VERSION);
+			Binary.writeString(out, campfire.subdomain);
+			Binary.writeVarInt(out, entries.size());
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				out.writeLong(entry.fetched);
+				entry.user.write(out);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace user cache snapshot.");
+		dirty = false;
+	}
+
+	// Merges a snapshot into the cache. Snapshots from another Campfire are ignored.
+	// Entries already in memory are newer than anything on disk, and win.
+	public synchronized void load(File file, Campfire campfire) throws IOException {
+		if (!file.exists())
+			return;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_VERSION)
+				return;
+			String subdomain = Binary.readString(in);
+			if (subdomain == null || !subdomain.equals(campfire.subdomain))
+				return;
+
+			int length = Binary.readVarInt(in);
+			ArrayList<Entry> loaded = new ArrayList<Entry>(length);
+			for (int i=0; i<length; i++) {
+				long fetched = in.readLong();
+				loaded.add(new Entry(User.read(campfire, in), fetched));
+			}
+
+			LinkedHashMap<String,Entry> current = new LinkedHashMap<String,Entry>(entries);
+			entries.clear();
+			for (int i=0; i<length; i++) {
+				Entry entry = loaded.get(i);
+				entries.put(entry.user.id, entry);
+			}
+			entries.putAll(current);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class Entry {
+		User user;
+		long fetched;
+
+		Entry(User user, long fetched) {
+			this.user = user;
+			this.fetched = fetched;
+		}
+
+		boolean expired(long now, long ttl) {
+			return (now - fetched) > ttl;
+		}
+	}
+}
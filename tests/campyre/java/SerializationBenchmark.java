@@ -0,0 +1,110 @@
+package campyre.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// Times a round trip of a room, with its Campfire and users, the way it travels through Intent extras
+// and saved state: through the reflective Serializable classes as they were (copied in campyre.java.baseline),
+// through the Externalizable ones as they are now, and through write()/read() alone. Not part of the app.
+// Build it against src/ and run it with:
+//
+//   java -cp <classpath> campyre.java.SerializationBenchmark [rounds]
+public class SerializationBenchmark {
+	private static final int USERS = 30;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+
+		Campfire campfire = new Campfire("example", "0123456789abcdef0123456789abcdef", "1");
+		Room room = sampleRoom(campfire);
+		campyre.java.baseline.Room baselineRoom = baselineRoom(room);
+
+		// twice, so the second run is timed after the JIT has warmed up
+		for (int run=0; run<2; run++) {
+			System.out.println(run == 0 ? "warming up:" : "timed:");
+			report("reflective (baseline)", rounds, serialized(baselineRoom, rounds));
+			report("externalizable", rounds, serialized(room, rounds));
+			report("write/read", rounds, binary(room, rounds));
+		}
+	}
+
+	private static long[] serialized(Serializable room, int rounds) throws Exception {
+		long start = System.nanoTime();
+		int size = 0;
+		for (int r=0; r<rounds; r++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(room);
+			out.close();
+			size = bytes.size();
+
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			in.readObject();
+			in.close();
+		}
+		return new long[] {System.nanoTime() - start, size};
+	}
+
+	private static long[] binary(Room room, int rounds) throws Exception {
+		long start = System.nanoTime();
+		int size = 0;
+		for (int r=0; r<rounds; r++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			room.write(out);
+			out.close();
+			size = bytes.size();
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			Room.read(in);
+			in.close();
+		}
+		return new long[] {System.nanoTime() - start, size};
+	}
+
+	private static void report(String name, int rounds, long[] result) {
+		System.out.println("  " + name + ": " + (result[0] / 1000 / rounds) + " us per round trip, " + result[1] + " bytes");
+	}
+
+	private static Room sampleRoom(Campfire campfire) {
+		Room room = new Room(campfire, "123456");
+		room.name = "Engineering";
+		room.topic = "Ship it, then talk about shipping it";
+		room.initialUsers = new ArrayList<User>();
+		for (int i=0; i<USERS; i++) {
+			User user = new User();
+			user.campfire = campfire;
+			user.id = "" + (1000 + i);
+			user.name = "Person Number" + i;
+			user.email = "person" + i + "@example.com";
+			room.initialUsers.add(user);
+		}
+		return room;
+	}
+
+	// the same room, as the baseline classes
+	private static campyre.java.baseline.Room baselineRoom(Room room) {
+		campyre.java.baseline.Campfire campfire = new campyre.java.baseline.Campfire(room.campfire.subdomain, room.campfire.token, room.campfire.user_id);
+		campyre.java.baseline.Room copy = new campyre.java.baseline.Room(campfire, room.id);
+		copy.name = room.name;
+		copy.topic = room.topic;
+		copy.full = room.full;
+		copy.initialUsers = new ArrayList<campyre.java.baseline.User>();
+		for (int i=0; i<room.initialUsers.size(); i++) {
+			User user = room.initialUsers.get(i);
+			campyre.java.baseline.User userCopy = new campyre.java.baseline.User();
+			userCopy.campfire = campfire;
+			userCopy.id = user.id;
+			userCopy.name = user.name;
+			userCopy.email = user.email;
+			copy.initialUsers.add(userCopy);
+		}
+		return copy;
+	}
+}
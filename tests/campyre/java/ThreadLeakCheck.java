@@ -0,0 +1,307 @@
+package campyre.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+// Checks that following rooms leaves no threads behind, through the life RoomPoller gives them:
+// started (a poll, then the stream takes over), paused (the stream closed and polling paused),
+// resumed (a catch-up poll straight away, then the stream again) and stopped (dropped from the
+// scheduler, the stream closed). Live campyre-poll-* and campyre-stream-* threads are counted after
+// every step. It also closes streams while they wait to reconnect, which mustn't hold their threads up.
+//
+// Nothing goes over the network: the scheduler's fetch and the stream's open() are stood in for.
+// Not part of the app. Build it against src/ and run it with:
+//
+//   java -cp <classpath> campyre.java.ThreadLeakCheck
+//
+// Exits with status 1 if anything was left running.
+public class ThreadLeakCheck {
+	private static final int ROOMS = 4;
+	private static final int CYCLES = 5;
+
+	// in milliseconds
+	private static final int SETTLE = 1000;
+	private static final int STEP_TIMEOUT = 3000;
+	private static final int STREAM_FAILING = 1500;
+
+	private static boolean failed = false;
+
+	public static void main(String[] args) throws Exception {
+		Campfire campfire = new Campfire("example", "token", "1");
+
+		checkLifecycle(campfire);
+		checkFailingStream(campfire);
+
+		System.out.println(failed ? "FAILED" : "OK");
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static void checkLifecycle(Campfire campfire) throws InterruptedException {
+		PollScheduler scheduler = new PollScheduler() {
+			@Override
+			ArrayList<Message> fetch(Room room, int max, String since) {
+				return new ArrayList<Message>();
+			}
+		};
+		int pollBefore = count("campyre-poll-"), streamBefore = count("campyre-stream-");
+
+		for (int cycle=0; cycle<CYCLES; cycle++) {
+			ArrayList<Follower> followers = new ArrayList<Follower>();
+			for (int i=0; i<ROOMS; i++)
+				followers.add(new Follower(scheduler, new Room(campfire, "" + (cycle * ROOMS + i + 1))));
+
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).start();
+			for (int i=0; i<ROOMS; i++)
+				check("started: polled, then streamed", followers.get(i).awaitStream(1), followers.get(i).room.id + " isn't streaming");
+			checkThreads("started", pollBefore, streamBefore, ROOMS);
+
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).pause();
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).awaitStreamEnd();
+			int[] polls = pollCounts(followers);
+			Thread.sleep(SETTLE);
+			checkQuiet("paused", followers, polls);
+			checkThreads("paused", pollBefore, streamBefore, 0);
+
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).resume();
+			for (int i=0; i<ROOMS; i++) {
+				Follower follower = followers.get(i);
+				check("resumed: caught up, then streamed", follower.awaitPoll(polls[i] + 1) && follower.awaitStream(2), follower.room.id + " didn't catch up");
+			}
+			checkThreads("resumed", pollBefore, streamBefore, ROOMS);
+
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).stop();
+			for (int i=0; i<ROOMS; i++)
+				followers.get(i).awaitStreamEnd();
+			polls = pollCounts(followers);
+			Thread.sleep(SETTLE);
+			checkQuiet("stopped", followers, polls);
+			check("stopped: nothing left subscribed", scheduler.size() == 0, scheduler.size() + " subscriptions");
+			checkThreads("stopped", pollBefore, streamBefore, 0);
+		}
+	}
+
+	// A stream that can't connect, closed while it's waiting to try again.
+	private static void checkFailingStream(Campfire campfire) throws InterruptedException {
+		int before = count("campyre-stream-");
+		for (int i=0; i<ROOMS; i++) {
+			final RoomStream stream = new RoomStream(new Room(campfire, "" + (i + 1)), null, new Listener()) {
+				@Override
+				Reader open() throws IOException {
+					throw new IOException("no network here");
+				}
+			};
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					stream.run();
+				}
+			}, "campyre-stream-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+
+			// long enough for two attempts to fail, so it's waiting out a reconnect delay longer than STEP_TIMEOUT
+			Thread.sleep(STREAM_FAILING);
+			stream.close();
+			thread.join(STEP_TIMEOUT);
+			check("failing stream finishes on close", !thread.isAlive(), thread.getName() + " still running");
+		}
+
+		int after = count("campyre-stream-") - before;
+		check("no failing stream threads left", after == 0, after + " threads");
+	}
+
+	private static void checkThreads(String step, int pollBefore, int streamBefore, int streams) {
+		int polling = count("campyre-poll-") - pollBefore;
+		check(step + ": poll threads bounded", polling <= PollScheduler.MAX_CONCURRENT + 1, polling + " threads");
+		int streaming = count("campyre-stream-") - streamBefore;
+		check(step + ": " + streams + " stream threads", streaming == streams, streaming + " threads");
+	}
+
+	private static void checkQuiet(String step, ArrayList<Follower> followers, int[] polls) {
+		int[] now = pollCounts(followers);
+		for (int i=0; i<now.length; i++)
+			check(step + ": not polled", now[i] == polls[i], (now[i] - polls[i]) + " polls of " + followers.get(i).room.id);
+	}
+
+	private static int[] pollCounts(ArrayList<Follower> followers) {
+		int[] polls = new int[followers.size()];
+		for (int i=0; i<polls.length; i++)
+			polls[i] = followers.get(i).polls();
+		return polls;
+	}
+
+	private static int count(String prefix) {
+		int count = 0;
+		Iterator<Thread> threads = Thread.getAllStackTraces().keySet().iterator();
+		while (threads.hasNext()) {
+			Thread thread = threads.next();
+			if (thread.isAlive() && thread.getName().startsWith(prefix))
+				count += 1;
+		}
+		return count;
+	}
+
+	private static void check(String name, boolean passed, String detail) {
+		if (!passed) {
+			System.out.println("FAILED " + name + ": " + detail);
+			failed = true;
+		} else
+			System.out.println("ok     " + name);
+	}
+
+	// Follows a room the way RoomPoller does, less the screen: polled until the first poll,
+	// then streamed, with polling paused while the stream lasts.
+	private static class Follower extends Listener {
+		private PollScheduler scheduler;
+		private Room room;
+		private PollScheduler.Subscription subscription;
+
+		// guarded by this
+		private RoomStream stream = null;
+		private Thread streamThread = null;
+		private String streamedTo = null;
+		private boolean paused = false, stopped = false;
+		private int polls = 0, streams = 0;
+
+		Follower(PollScheduler scheduler, Room room) {
+			this.scheduler = scheduler;
+			this.room = room;
+		}
+
+		// synchronized, so the first poll can't start the stream before the subscription's known
+		synchronized void start() {
+			subscription = scheduler.subscribe(room, null, 10, this);
+		}
+
+		synchronized void pause() {
+			paused = true;
+			subscription.pause();
+			closeStream();
+		}
+
+		synchronized void resume() {
+			paused = false;
+			subscription.resume(streamedTo);
+			streamedTo = null;
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			subscription.cancel();
+			closeStream();
+		}
+
+		synchronized int polls() {
+			return polls;
+		}
+
+		@Override
+		public void onPoll(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {
+			synchronized (this) {
+				if (stopped)
+					return;
+				polls += 1;
+				if (!paused && stream == null)
+					startStream();
+				notifyAll();
+			}
+		}
+
+		private void startStream() {
+			subscription.pause();
+			final RoomStream stream = new QuietStream(room, subscription.lastMessageId(), this);
+			this.stream = stream;
+			streamThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					stream.run();
+				}
+			}, "campyre-stream-" + room.id);
+			streamThread.setDaemon(true);
+			streamThread.start();
+			streams += 1;
+		}
+
+		private void closeStream() {
+			if (stream != null) {
+				streamedTo = stream.lastMessageId();
+				stream.close();
+				stream = null;
+			}
+		}
+
+		synchronized boolean awaitPoll(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + STEP_TIMEOUT;
+			while (polls < count && System.currentTimeMillis() < end)
+				wait(end - System.currentTimeMillis());
+			return polls >= count;
+		}
+
+		synchronized boolean awaitStream(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + STEP_TIMEOUT;
+			while (streams < count && System.currentTimeMillis() < end)
+				wait(end - System.currentTimeMillis());
+			return streams >= count;
+		}
+
+		void awaitStreamEnd() throws InterruptedException {
+			Thread thread;
+			synchronized (this) {
+				thread = streamThread;
+			}
+			if (thread != null)
+				thread.join(STEP_TIMEOUT);
+		}
+	}
+
+	// A stream that connects at once and then hears nothing until it's closed.
+	private static class QuietStream extends RoomStream {
+		QuietStream(Room room, String lastMessageId, RoomStream.Listener listener) {
+			super(room, lastMessageId, listener);
+		}
+
+		@Override
+		Reader open() {
+			return new Reader() {
+				@Override
+				public int read(char[] buffer, int offset, int length) throws IOException {
+					try {
+						while (true)
+							Thread.sleep(50);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+
+				@Override
+				public void close() {}
+			};
+		}
+	}
+
+	// listens to the scheduler and to streams, and ignores them
+	private static class Listener implements PollScheduler.Listener, RoomStream.Listener {
+		@Override
+		public void onPoll(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {}
+
+		@Override
+		public void onPollFailed(PollScheduler.Subscription subscription, CampfireException exception) {}
+
+		@Override
+		public void onBackfill(PollScheduler.Subscription subscription, ArrayList<Message> messages, String previousId) {}
+
+		@Override
+		public void onMessages(ArrayList<Message> messages, String previousId) {}
+
+		@Override
+		public void onBackfill(ArrayList<Message> messages, String previousId) {}
+	}
+}
@@ -0,0 +1,18 @@
+package campyre.java.baseline;
+
+import java.io.Serializable;
+
+// campyre.java.Campfire's fields as they were before it was Externalizable, for SerializationBenchmark.
+public class Campfire implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public String subdomain, token;
+	public String username, password;
+	public String user_id = null;
+
+	public Campfire(String subdomain, String token, String user_id) {
+		this.subdomain = subdomain;
+		this.token = token;
+		this.user_id = user_id;
+	}
+}
@@ -0,0 +1,19 @@
+package campyre.java.baseline;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// campyre.java.Room's fields as they were before it was Externalizable, for SerializationBenchmark.
+public class Room implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public String id, name, topic;
+	public boolean full = false;
+	public Campfire campfire;
+	public ArrayList<User> initialUsers = null;
+
+	public Room(Campfire campfire, String id) {
+		this.campfire = campfire;
+		this.id = id;
+	}
+}
@@ -0,0 +1,11 @@
+package campyre.java.baseline;
+
+import java.io.Serializable;
+
+// campyre.java.User's fields as they were before it was Externalizable, for SerializationBenchmark.
+public class User implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public String id, name, email;
+	public Campfire campfire;
+}